@@ -0,0 +1,210 @@
+package org.dimdev.dimcore.schematic;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+import net.minecraft.block.BlockState;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.NbtIo;
+
+/**
+ * A decoded schematic stored uncompressed in a file that is memory-mapped, so that it doesn't take up heap until it's
+ * decoded and never has to be decompressed again. The file is only used if it was written from a source file with the
+ * same size and stamp (its modification time, or a checksum if that isn't known), so the source doesn't have to be
+ * read to check it.
+ * <p>
+ * The layout is big-endian: a header (magic, format version, source size and stamp, schematic version, size, offset and
+ * palette max), the palette as block state strings, the packed block storage of {@link PackedBlockData}, and the
+ * uncompressed NBT of each block entity and entity behind a table of their offsets. Schematic metadata (name, author,
+ * date and required mods) isn't stored, it isn't used when placing.
+ */
+public class MappedSchematic {
+    private static final int MAGIC = 0x44445343; // "DDSC"
+    private static final int FORMAT_VERSION = 2;
+    private static final int SOURCE_HEADER_SIZE = 24; // Magic, format version, source size and source stamp
+
+    private final MappedByteBuffer buffer;
+    private final int bodyStart; // Position after the header
+    public final int version;
+    public final short sizeX;
+    public final short sizeY;
+    public final short sizeZ;
+    private final int[] offset;
+    private final int paletteMax;
+
+    private MappedSchematic(MappedByteBuffer buffer) {
+        this.buffer = buffer;
+        version = buffer.getInt();
+        sizeX = buffer.getShort();
+        sizeY = buffer.getShort();
+        sizeZ = buffer.getShort();
+        offset = new int[]{buffer.getInt(), buffer.getInt(), buffer.getInt()};
+        paletteMax = buffer.getInt();
+        bodyStart = buffer.position();
+    }
+
+    /**
+     * Maps a schematic file. Its header is read first, the file is only mapped if it matches the source.
+     *
+     * @param sourceSize The size of the source the file should have been written from
+     * @param sourceStamp The stamp of the source the file should have been written from
+     * @return The mapped schematic, or null if the file doesn't exist or was written from a different source or by a
+     * different version
+     */
+    public static MappedSchematic open(File file, long sourceSize, long sourceStamp) throws IOException {
+        if (!file.isFile()) return null;
+        MappedByteBuffer buffer;
+        try (RandomAccessFile in = new RandomAccessFile(file, "r"); FileChannel channel = in.getChannel()) {
+            ByteBuffer header = ByteBuffer.allocate(SOURCE_HEADER_SIZE);
+            while (header.hasRemaining()) {
+                if (channel.read(header) < 0) return null;
+            }
+            header.flip();
+            if (header.getInt() != MAGIC || header.getInt() != FORMAT_VERSION || header.getLong() != sourceSize || header.getLong() != sourceStamp) return null;
+
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()); // The mapping stays valid after closing the channel
+        }
+
+        try {
+            buffer.position(SOURCE_HEADER_SIZE);
+            return new MappedSchematic(buffer);
+        } catch (BufferUnderflowException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes a schematic file. It's written to a uniquely named temporary file first so that a partially written
+     * file is never mapped, even if the same file is written by several threads.
+     *
+     * @param sourceSize The size of the source the schematic was decoded from
+     * @param sourceStamp The stamp of the source the schematic was decoded from
+     */
+    public static void write(Schematic schematic, long sourceSize, long sourceStamp, File file) throws IOException {
+        file.getParentFile().mkdirs();
+        File tempFile = Files.createTempFile(file.getParentFile().toPath(), file.getName(), ".tmp").toFile();
+        try {
+            writeTo(schematic, sourceSize, sourceStamp, tempFile);
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tempFile.toPath());
+        }
+    }
+
+    private static void writeTo(Schematic schematic, long sourceSize, long sourceStamp, File tempFile) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(sourceSize);
+            out.writeLong(sourceStamp);
+            out.writeInt(schematic.version);
+            out.writeShort(schematic.sizeX);
+            out.writeShort(schematic.sizeY);
+            out.writeShort(schematic.sizeZ);
+            for (int i = 0; i < 3; i++) {
+                out.writeInt(schematic.offset.length > i ? schematic.offset[i] : 0);
+            }
+            out.writeInt(schematic.paletteMax);
+
+            out.writeInt(schematic.palette.size());
+            for (BlockState state : schematic.palette) {
+                byte[] string = Schematic.getBlockStateStringFromState(state).getBytes(StandardCharsets.UTF_8);
+                out.writeShort(string.length);
+                out.write(string);
+            }
+
+            long[] storage = schematic.blockData.getStorage();
+            out.writeInt(schematic.blockData.getBits());
+            out.writeInt(storage.length);
+            for (long value : storage) {
+                out.writeLong(value);
+            }
+
+            ByteArrayOutputStream tags = new ByteArrayOutputStream();
+            DataOutputStream tagsOut = new DataOutputStream(tags);
+            int[] tagOffsets = new int[schematic.tileEntities.size() + schematic.entities.size() + 1];
+            int i = 0;
+            for (CompoundTag tag : schematic.tileEntities) {
+                tagOffsets[i++] = tags.size();
+                NbtIo.write(tag, tagsOut);
+            }
+            for (CompoundTag tag : schematic.entities) {
+                tagOffsets[i++] = tags.size();
+                NbtIo.write(tag, tagsOut);
+            }
+            tagOffsets[i] = tags.size();
+
+            out.writeInt(schematic.tileEntities.size());
+            out.writeInt(schematic.entities.size());
+            for (int tagOffset : tagOffsets) {
+                out.writeInt(tagOffset);
+            }
+            tags.writeTo(out);
+        }
+    }
+
+    /**
+     * Decodes the schematic. The mapped file isn't modified, so this can be called from several threads.
+     */
+    public Schematic decode() throws IOException {
+        ByteBuffer in = buffer.duplicate();
+        in.position(bodyStart);
+
+        Schematic schematic = new Schematic();
+        schematic.version = version;
+        schematic.creationDate = -1;
+        schematic.sizeX = sizeX;
+        schematic.sizeY = sizeY;
+        schematic.sizeZ = sizeZ;
+        schematic.offset = offset.clone();
+        schematic.paletteMax = paletteMax;
+
+        int paletteSize = in.getInt();
+        for (int i = 0; i < paletteSize; i++) {
+            byte[] string = new byte[in.getShort() & 0xFFFF];
+            in.get(string);
+            schematic.palette.add(Schematic.getBlockStateFromString(new String(string, StandardCharsets.UTF_8)));
+        }
+
+        int bits = in.getInt();
+        long[] storage = new long[in.getInt()];
+        in.asLongBuffer().get(storage);
+        in.position(in.position() + storage.length * 8);
+        schematic.blockData = new PackedBlockData(sizeX, sizeY, sizeZ, bits, storage);
+
+        int tileEntityCount = in.getInt();
+        int entityCount = in.getInt();
+        int[] tagOffsets = new int[tileEntityCount + entityCount + 1];
+        for (int i = 0; i < tagOffsets.length; i++) {
+            tagOffsets[i] = in.getInt();
+        }
+        int tagsStart = in.position();
+        readTags(in, tagsStart, tagOffsets, 0, tileEntityCount, schematic.tileEntities);
+        readTags(in, tagsStart, tagOffsets, tileEntityCount, entityCount, schematic.entities);
+        return schematic;
+    }
+
+    private static void readTags(ByteBuffer in, int tagsStart, int[] tagOffsets, int first, int count, List<CompoundTag> tags) throws IOException {
+        for (int i = first; i < first + count; i++) {
+            byte[] bytes = new byte[tagOffsets[i + 1] - tagOffsets[i]];
+            in.position(tagsStart + tagOffsets[i]);
+            in.get(bytes);
+            tags.add(NbtIo.read(new DataInputStream(new ByteArrayInputStream(bytes))));
+        }
+    }
+}
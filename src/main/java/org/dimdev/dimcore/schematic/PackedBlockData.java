@@ -0,0 +1,127 @@
+package org.dimdev.dimcore.schematic;
+
+/**
+ * The palette indices of a schematic's blocks, bit-packed into a flat long array in the same way as vanilla's
+ * PackedIntegerArray (values don't span two longs). Blocks are ordered by the Sponge schematic index
+ * {@code x + z * sizeX + y * sizeX * sizeZ}, so the array can be read and written in a single pass.
+ * <p>
+ * The number of bits per block grows as larger palette indices are stored.
+ */
+public class PackedBlockData {
+    private static final int MIN_BITS = 4;
+
+    private final int sizeX;
+    private final int sizeY;
+    private final int sizeZ;
+    private final int size;
+    private int bits;
+    private int valuesPerLong;
+    private long mask;
+    private long[] storage;
+
+    public PackedBlockData(int sizeX, int sizeY, int sizeZ) {
+        this(sizeX, sizeY, sizeZ, 1);
+    }
+
+    /**
+     * @param paletteSize The number of palette entries that will be used, to avoid growing the storage later
+     */
+    public PackedBlockData(int sizeX, int sizeY, int sizeZ, int paletteSize) {
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        this.sizeZ = sizeZ;
+        size = sizeX * sizeY * sizeZ;
+        setBits(bitsFor(paletteSize - 1));
+        storage = new long[(size + valuesPerLong - 1) / valuesPerLong];
+    }
+
+    /**
+     * Wraps already packed storage, as returned by {@link #getStorage()}.
+     */
+    PackedBlockData(int sizeX, int sizeY, int sizeZ, int bits, long[] storage) {
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        this.sizeZ = sizeZ;
+        size = sizeX * sizeY * sizeZ;
+        if (bits < MIN_BITS || bits > 32) throw new IllegalArgumentException("Packed storage can't have " + bits + " bits per block");
+        setBits(bits);
+        if (storage.length != (size + valuesPerLong - 1) / valuesPerLong) throw new IllegalArgumentException("Packed storage has the wrong length for its size");
+        this.storage = storage;
+    }
+
+    public int getSizeX() {
+        return sizeX;
+    }
+
+    public int getSizeY() {
+        return sizeY;
+    }
+
+    public int getSizeZ() {
+        return sizeZ;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return The size of the packed storage in bytes
+     */
+    public long getStorageSize() {
+        return storage.length * 8L;
+    }
+
+    int getBits() {
+        return bits;
+    }
+
+    long[] getStorage() {
+        return storage;
+    }
+
+    public int index(int x, int y, int z) {
+        return x + z * sizeX + y * sizeX * sizeZ;
+    }
+
+    public int get(int x, int y, int z) {
+        return get(index(x, y, z));
+    }
+
+    public void set(int x, int y, int z, int value) {
+        set(index(x, y, z), value);
+    }
+
+    public int get(int index) {
+        int cell = index / valuesPerLong;
+        int shift = (index - cell * valuesPerLong) * bits;
+        return (int) (storage[cell] >>> shift & mask);
+    }
+
+    public void set(int index, int value) {
+        if (value < 0) throw new IllegalArgumentException("Palette index " + value + " is negative");
+        if (value > mask) grow(bitsFor(value));
+        int cell = index / valuesPerLong;
+        int shift = (index - cell * valuesPerLong) * bits;
+        storage[cell] = storage[cell] & ~(mask << shift) | (long) value << shift;
+    }
+
+    private void grow(int newBits) {
+        PackedBlockData grown = new PackedBlockData(sizeX, sizeY, sizeZ, 1 << newBits);
+        for (int i = 0; i < size; i++) {
+            grown.set(i, get(i));
+        }
+        setBits(grown.bits);
+        storage = grown.storage;
+    }
+
+    private void setBits(int bits) {
+        this.bits = bits;
+        valuesPerLong = 64 / bits;
+        mask = (1L << bits) - 1;
+    }
+
+    private static int bitsFor(int maxValue) {
+        return Math.max(MIN_BITS, 32 - Integer.numberOfLeadingZeros(Math.max(maxValue, 0)));
+    }
+}
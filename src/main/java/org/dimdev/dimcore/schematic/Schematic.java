@@ -1,16 +1,22 @@
 package org.dimdev.dimcore.schematic;
 
+import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.function.UnaryOperator;
 
 import net.minecraft.block.entity.BlockEntityType;
+import net.minecraft.server.world.ServerLightingProvider;
 import net.minecraft.server.world.ServerWorld;
 import net.minecraft.world.*;
+import it.unimi.dsi.fastutil.objects.Reference2IntMap;
+import it.unimi.dsi.fastutil.objects.Reference2IntOpenHashMap;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -30,6 +36,8 @@ import net.minecraft.state.StateManager;
 import net.minecraft.state.property.Property;
 import net.minecraft.util.Identifier;
 import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.util.math.ChunkSectionPos;
 import net.minecraft.util.math.Box;
 import net.minecraft.util.math.Vec3i;
 import net.minecraft.util.registry.Registry;
@@ -49,12 +57,15 @@ public class Schematic implements BlockView {
     public int[] offset = {0, 0, 0};
     public int paletteMax;
     public List<BlockState> palette = new ArrayList<>();
-    public short[][][] blockData;
+    public PackedBlockData blockData;
     public List<CompoundTag> tileEntities = new ArrayList<>();
     public List<CompoundTag> entities = new ArrayList<>();
+    private final Reference2IntMap<BlockState> paletteIndices = new Reference2IntOpenHashMap<>(); // Not saved, palette entry -> index, catches up with the palette when used
+    private int indexedPaletteSize = 0;
 
     public Schematic() {
         paletteMax = -1;
+        paletteIndices.defaultReturnValue(-1);
     }
 
     public Schematic(short width, short height, short length) {
@@ -62,7 +73,7 @@ public class Schematic implements BlockView {
         this.sizeX = width;
         this.sizeY = height;
         this.sizeZ = length;
-        blockData = new short[width][height][length];
+        blockData = new PackedBlockData(width, height, length);
         palette.add(Blocks.AIR.getDefaultState());
         paletteMax++;
         creationDate = System.currentTimeMillis();
@@ -74,35 +85,15 @@ public class Schematic implements BlockView {
         this.author = author;
     }
 
+    /**
+     * Reads a schematic that is already a tag, such as the result of {@link #saveToNBT}. Schematic files are read with
+     * {@link SchematicReader} instead.
+     */
     public static Schematic fromTag(CompoundTag tag) {
         Schematic schematic = new Schematic();
         schematic.version = tag.getInt("Version");
 
-        schematic.creationDate = System.currentTimeMillis();
-
-        if (tag.contains("Metadata")) {
-            CompoundTag metadataCompound = tag.getCompound("Metadata").getCompound(".");
-
-            if (tag.contains("Author")) {
-                schematic.author = metadataCompound.getString("Author");
-            }
-
-            schematic.name = metadataCompound.getString("Name");
-
-            if (tag.contains("Date")) { //Date is not required
-                schematic.creationDate = metadataCompound.getLong("Date");
-            } else {
-                schematic.creationDate = -1;
-            }
-
-            if (tag.contains("RequiredMods")) { //RequiredMods is not required (ironically)
-                ListTag requiredModsTagList = (ListTag) metadataCompound.get("RequiredMods");
-                schematic.requiredMods = new String[requiredModsTagList.size()];
-                for (int i = 0; i < requiredModsTagList.size(); i++) {
-                    schematic.requiredMods[i] = requiredModsTagList.getString(i);
-                }
-            }
-        }
+        readMetadata(schematic, tag);
 
         schematic.sizeX = tag.getShort("Width");
         schematic.sizeY = tag.getShort("Height");
@@ -121,34 +112,7 @@ public class Schematic implements BlockView {
         }
 
         for (int i = 0; i < paletteMap.size(); i++) {
-            String blockStateString = SchematicConverter.updateId(paletteMap.get(i));
-            char lastBlockStateStringChar = blockStateString.charAt(blockStateString.length() - 1);
-            String id;
-            String state;
-            if (lastBlockStateStringChar == ']') {
-                String[] blockAndStateStrings = blockStateString.split("\\[");
-                id = blockAndStateStrings[0];
-                state = blockAndStateStrings[1];
-                state = state.substring(0, state.length() - 1); //remove the "]" at the end
-            } else {
-                id = blockStateString;
-                state = "";
-            }
-
-            Block block = Registry.BLOCK.get(new Identifier(id));
-
-            if (block == Blocks.AIR && !"minecraft:air".equals(id)) {
-                System.err.println("Missing ID: " + blockStateString);
-            }
-
-            BlockState blockstate = block.getDefaultState();
-
-            if (!state.isEmpty()) {
-                String[] properties = state.split(",");
-                blockstate = getBlockStateWithProperties(block, properties);
-            }
-
-            schematic.palette.add(blockstate); //@todo, can we assume that a schematic file always has all palette integers used from 0 to pallettemax-1?
+            schematic.palette.add(getBlockStateFromString(SchematicConverter.updateId(paletteMap.get(i)))); //@todo, can we assume that a schematic file always has all palette integers used from 0 to pallettemax-1?
         }
 
         if (tag.contains("PaletteMax")) {
@@ -157,15 +121,8 @@ public class Schematic implements BlockView {
             schematic.paletteMax = schematic.palette.size() - 1;
         }
 
-        byte[] blockDataIntArray = tag.getByteArray("BlockData");
-        schematic.blockData = new short[schematic.sizeX][schematic.sizeY][schematic.sizeZ];
-        for (int x = 0; x < schematic.sizeX; x++) {
-            for (int y = 0; y < schematic.sizeY; y++) {
-                for (int z = 0; z < schematic.sizeZ; z++) {
-                    schematic.blockData[x][y][z] = blockDataIntArray[x + z * schematic.sizeX + y * schematic.sizeX * schematic.sizeZ]; //according to the documentation on https://github.com/SpongePowered/Schematic-Specification/blob/master/versions/schematic-1.md
-                }
-            }
-        }
+        schematic.blockData = new PackedBlockData(schematic.sizeX, schematic.sizeY, schematic.sizeZ, schematic.palette.size());
+        readBlockData(tag.getByteArray("BlockData"), schematic.blockData);
 
         if (tag.contains("TileEntities")) {
             for (Tag tag1 : (ListTag) tag.get("TileEntities")) {
@@ -184,6 +141,34 @@ public class Schematic implements BlockView {
         return schematic;
     }
 
+    static void readMetadata(Schematic schematic, CompoundTag tag) {
+        schematic.creationDate = System.currentTimeMillis();
+
+        if (tag.contains("Metadata")) {
+            CompoundTag metadataCompound = tag.getCompound("Metadata").getCompound(".");
+
+            if (tag.contains("Author")) {
+                schematic.author = metadataCompound.getString("Author");
+            }
+
+            schematic.name = metadataCompound.getString("Name");
+
+            if (tag.contains("Date")) { //Date is not required
+                schematic.creationDate = metadataCompound.getLong("Date");
+            } else {
+                schematic.creationDate = -1;
+            }
+
+            if (tag.contains("RequiredMods")) { //RequiredMods is not required (ironically)
+                ListTag requiredModsTagList = (ListTag) metadataCompound.get("RequiredMods");
+                schematic.requiredMods = new String[requiredModsTagList.size()];
+                for (int i = 0; i < requiredModsTagList.size(); i++) {
+                    schematic.requiredMods[i] = requiredModsTagList.getString(i);
+                }
+            }
+        }
+    }
+
     public CompoundTag saveToNBT() {
         CompoundTag nbt = new CompoundTag();
 
@@ -221,17 +206,7 @@ public class Schematic implements BlockView {
 
         nbt.put("Palette", paletteNBT);
 
-        byte[] blockDataIntArray = new byte[sizeX * sizeY * sizeZ];
-
-        for (int x = 0; x < sizeX; x++) {
-            for (int y = 0; y < sizeY; y++) {
-                for (int z = 0; z < sizeZ; z++) {
-                    blockDataIntArray[x + z * sizeX + y * sizeX * sizeZ] = (byte) blockData[x][y][z]; //according to the documentation on https://github.com/SpongePowered/Schematic-Specification/blob/master/versions/schematic-1.md
-                }
-            }
-        }
-
-        nbt.putByteArray("BlockData", blockDataIntArray);
+        nbt.putByteArray("BlockData", writeBlockData(blockData));
 
         ListTag tileEntitiesTagList = new ListTag();
         tileEntitiesTagList.addAll(tileEntities);
@@ -244,6 +219,78 @@ public class Schematic implements BlockView {
         return nbt;
     }
 
+    /**
+     * Decodes the varint palette indices of a BlockData array into block data. Both use the order from
+     * https://github.com/SpongePowered/Schematic-Specification/blob/master/versions/schematic-1.md
+     */
+    static void readBlockData(byte[] bytes, PackedBlockData blockData) {
+        int i = 0;
+        int index = 0;
+        while (i < bytes.length && index < blockData.size()) {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                if (i == bytes.length) throw new IllegalArgumentException("BlockData ends in the middle of a varint");
+                if (shift > 28) throw new IllegalArgumentException("BlockData contains a varint longer than 5 bytes");
+                b = bytes[i++];
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            blockData.set(index++, value);
+        }
+
+        if (index < blockData.size()) {
+            LOGGER.warn("BlockData only contained " + index + " of " + blockData.size() + " blocks, the rest will be air");
+        }
+    }
+
+    /**
+     * Encodes block data as a BlockData array of varint palette indices.
+     */
+    static byte[] writeBlockData(PackedBlockData blockData) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(blockData.size());
+        for (int i = 0; i < blockData.size(); i++) {
+            int value = blockData.get(i);
+            while ((value & ~0x7F) != 0) {
+                out.write(value & 0x7F | 0x80);
+                value >>>= 7;
+            }
+            out.write(value);
+        }
+        return out.toByteArray();
+    }
+
+    static BlockState getBlockStateFromString(String blockStateString) {
+        char lastBlockStateStringChar = blockStateString.charAt(blockStateString.length() - 1);
+        String id;
+        String state;
+        if (lastBlockStateStringChar == ']') {
+            String[] blockAndStateStrings = blockStateString.split("\\[");
+            id = blockAndStateStrings[0];
+            state = blockAndStateStrings[1];
+            state = state.substring(0, state.length() - 1); //remove the "]" at the end
+        } else {
+            id = blockStateString;
+            state = "";
+        }
+
+        Block block = Registry.BLOCK.get(new Identifier(id));
+
+        if (block == Blocks.AIR && !"minecraft:air".equals(id)) {
+            System.err.println("Missing ID: " + blockStateString);
+        }
+
+        BlockState blockstate = block.getDefaultState();
+
+        if (!state.isEmpty()) {
+            String[] properties = state.split(",");
+            blockstate = getBlockStateWithProperties(block, properties);
+        }
+
+        return blockstate;
+    }
+
     static BlockState getBlockStateWithProperties(Block block, String[] properties) {
         Map<String, String> propertyAndBlockStringsMap = new HashMap<>();
 
@@ -280,7 +327,7 @@ public class Schematic implements BlockView {
         return chosenState;
     }
 
-    private static String getBlockStateStringFromState(BlockState state) {
+    static String getBlockStateStringFromState(BlockState state) {
         Block block = state.getBlock();
         String blockNameString = Registry.BLOCK.getId(block).toString();
         StringBuilder blockStateString = new StringBuilder();
@@ -359,19 +406,40 @@ public class Schematic implements BlockView {
     }
 
     public void place(WorldAccess world, int xBase, int yBase, int zBase) {
+        place(world, xBase, yBase, zBase, UnaryOperator.identity());
+    }
+
+    public void place(WorldAccess world, int xBase, int yBase, int zBase, UnaryOperator<CompoundTag> blockEntityTagResolver) {
         // Place the schematic's blocks
         this.setBlocks(world, xBase, yBase, zBase);
+        this.placeBlockEntities(world, xBase, yBase, zBase, blockEntityTagResolver);
+    }
+
+    /**
+     * Sets the block entity data of the schematic, once its blocks have been placed.
+     */
+    public void placeBlockEntities(WorldAccess world, int xBase, int yBase, int zBase) {
+        placeBlockEntities(world, xBase, yBase, zBase, UnaryOperator.identity());
+    }
 
-       // Set BlockEntity data
+    /**
+     * Sets the block entity data of the schematic, once its blocks have been placed.
+     *
+     * @param blockEntityTagResolver Gives the data to load for a block entity tag of the schematic, for tags that
+     *                               stand in for other data. The position is always taken from the schematic's tag,
+     *                               and the returned tag isn't modified, so it may be shared.
+     */
+    public void placeBlockEntities(WorldAccess world, int xBase, int yBase, int zBase, UnaryOperator<CompoundTag> blockEntityTagResolver) {
         for (CompoundTag BlockEntityNBT : tileEntities) {
             Vec3i schematicPos = new BlockPos(BlockEntityNBT.getInt("x"), BlockEntityNBT.getInt("y"), BlockEntityNBT.getInt("z"));
             BlockPos pos = new BlockPos(xBase, yBase, zBase).add(schematicPos);
             BlockEntity blockEntity = world.getBlockEntity(pos);
             if (blockEntity != null) {
-                String id = BlockEntityNBT.getString("id");
+                CompoundTag blockEntityTag = blockEntityTagResolver.apply(BlockEntityNBT);
+                String id = blockEntityTag.getString("id");
                 String blockBlockEntityId = BlockEntityType.getId(blockEntity.getType()).toString();
                 if (id.equals(blockBlockEntityId)) {
-                    blockEntity.fromTag(world.getBlockState(pos), BlockEntityNBT);
+                    blockEntity.fromTag(world.getBlockState(pos), blockEntityTag);
                     blockEntity.setPos(pos);
 
                     // Correct the position
@@ -406,90 +474,101 @@ public class Schematic implements BlockView {
             return Blocks.AIR.getDefaultState();
         }
 
-        return palette.get(blockData[x][y][z]);
+        return palette.get(blockData.get(x, y, z));
     }
 
     public void setBlockState(int x, int y, int z, BlockState state) {
-        if (palette.contains(state)) {
-            blockData[x][y][z] = (short) palette.indexOf(state); // TODO: optimize this (there must be some efficient list implementations)
-        } else {
+        int index = getPaletteIndex(state);
+        if (index == -1) {
             palette.add(state);
-            blockData[x][y][z] = (short) ++paletteMax;
+            index = ++paletteMax;
+        }
+        blockData.set(x, y, z, index);
+    }
+
+    private int getPaletteIndex(BlockState state) {
+        // The palette is public, so index any entries that were added since the last lookup
+        for (; indexedPaletteSize < palette.size(); indexedPaletteSize++) {
+            BlockState entry = palette.get(indexedPaletteSize);
+            if (!paletteIndices.containsKey(entry)) paletteIndices.put(entry, indexedPaletteSize);
         }
+        return paletteIndices.getInt(state);
     }
 
     private void setBlocks(WorldAccess world, int originX, int originY, int originZ) {
         LOGGER.debug("Setting chunk blockstates");
-        long setTime = 0;
-        long relightTime = 0;
-
-        for (int cx = 0; cx <= (sizeX >> 4) + 1; cx++) {
-            for (int cz = 0; cz <= (sizeZ >> 4) + 1; cz++) {
-                long setStart = System.nanoTime();
-                Chunk chunk = world.getChunk((originX >> 4) + cx, (originZ >> 4) + cz);
-                ChunkSection[] sections = chunk.getSectionArray();
-
-                for (int cy = 0; cy <= (sizeY >> 4) + 1; cy++) {
-                    ChunkSection section = sections[(originY >> 4) + cy];
-
-                    boolean setAir = true;
-                    if (section == null) {
-                        section = new ChunkSection((originY >> 4) + cy << 4);
-                        sections[(originY >> 4) + cy] = section;
-                        setAir = false;
-                    }
+        long startTime = System.nanoTime();
 
-                    for (int lx = 0; lx < 16; lx++) {
-                        for (int ly = 0; ly < 16; ly++) {
-                            for (int lz = 0; lz < 16; lz++) {
-                                int x = (cx << 4) + lx - (originX & 0x0F);
-                                int y = (cy << 4) + ly - (originY & 0x0F);
-                                int z = (cz << 4) + lz - (originZ & 0x0F);
-
-                                if (x >= 0 && y >= 0 && z >= 0 && x < sizeX && y < sizeY && z < sizeZ) {
-                                    BlockState state = palette.get(blockData[x][y][z]);
-                                    if (setAir || !state.getBlock().equals(Blocks.AIR)) {
-                                        section.setBlockState(lx, ly, lz, state);
-
-//                                        BlockPos pos = new BlockPos(originX + x, originY + y, originZ + z);
-//                                        serverWorld.getChunkManager().markForUpdate(pos);
-//                                        serverWorld.getLightingProvider().checkBlock(pos);
-                                        if (y > 255) {
-                                            System.out.println();
-                                        }
-
-                                        chunk.getHeightmap(Heightmap.Type.MOTION_BLOCKING).trackUpdate(lx, y, lz, state);
-                                        chunk.getHeightmap(Heightmap.Type.MOTION_BLOCKING_NO_LEAVES).trackUpdate(lx, y, lz, state);
-                                        chunk.getHeightmap(Heightmap.Type.OCEAN_FLOOR).trackUpdate(lx, y, lz, state);
-                                        chunk.getHeightmap(Heightmap.Type.WORLD_SURFACE).trackUpdate(lx, y, lz, state);
-
-                                        ServerWorld w;
-
-                                        if(world instanceof ServerWorldAccess) {
-                                            w = ((ServerWorldAccess) world).toServerWorld();
-                                        } else {
-                                            w = (ServerWorld) world;
-                                        }
-
-                                        w.getChunkManager().markForUpdate(new BlockPos(originX + x, originY + y, originZ + z));
-                                        w.getLightingProvider().checkBlock(new BlockPos(originX + x, originY + y, originZ + z));
-                                    }
-                                }
-                            }
+        int chunkCount = 0;
+        for (int chunkX = originX >> 4; chunkX <= originX + sizeX - 1 >> 4; chunkX++) {
+            for (int chunkZ = originZ >> 4; chunkZ <= originZ + sizeZ - 1 >> 4; chunkZ++) {
+                setChunkBlocks(world, originX, originY, originZ, chunkX, chunkZ);
+                chunkCount++;
+            }
+        }
+
+        LOGGER.debug("Set block states of " + chunkCount + " chunks in " + (System.nanoTime() - startTime) / 1000000 + " ms");
+    }
+
+    /**
+     * Writes the blocks of the schematic that fall inside one chunk straight into its sections. Heightmaps are rebuilt
+     * and the chunk is marked for saving once. The lighting engine is told about the sections that were written and
+     * every written block is relit, as it would be when setting it through the world. Block updates are only sent if
+     * players can see the chunk.
+     */
+    public void setChunkBlocks(WorldAccess world, int originX, int originY, int originZ, int chunkX, int chunkZ) {
+        ServerWorld serverWorld = world instanceof ServerWorldAccess ? ((ServerWorldAccess) world).toServerWorld() : (ServerWorld) world;
+        ServerLightingProvider lightingProvider = serverWorld.getChunkManager().getLightingProvider();
+        BlockPos.Mutable pos = new BlockPos.Mutable();
+
+        int maxX = originX + sizeX - 1;
+        int maxY = Math.min(originY + sizeY - 1, 255);
+        int maxZ = originZ + sizeZ - 1;
+        Chunk chunk = world.getChunk(chunkX, chunkZ);
+        ChunkSection[] sections = chunk.getSectionArray();
+        boolean watched = serverWorld.getChunkManager().threadedAnvilChunkStorage.getPlayersWatchingChunk(new ChunkPos(chunkX, chunkZ), false).findAny().isPresent();
+
+        // The part of the schematic inside this chunk, in world coordinates
+        int fromX = Math.max(originX, chunkX << 4);
+        int toX = Math.min(maxX, (chunkX << 4) + 15);
+        int fromZ = Math.max(originZ, chunkZ << 4);
+        int toZ = Math.min(maxZ, (chunkZ << 4) + 15);
+
+        for (int sectionY = originY >> 4; sectionY <= maxY >> 4; sectionY++) {
+            ChunkSection section = sections[sectionY];
+            boolean setAir = !ChunkSection.isEmpty(section); // Air doesn't need to be placed over nothing
+            if (section == null) {
+                section = new ChunkSection(sectionY << 4);
+                sections[sectionY] = section;
+            }
+            ChunkSectionPos sectionPos = ChunkSectionPos.from(chunkX, sectionY, chunkZ);
+            lightingProvider.setSectionStatus(sectionPos, false); // Before the blocks are relit, in case it was empty
+
+            int fromY = Math.max(originY, sectionY << 4);
+            int toY = Math.min(maxY, (sectionY << 4) + 15);
+            section.lock();
+            try {
+                for (int y = fromY; y <= toY; y++) {
+                    for (int z = fromZ; z <= toZ; z++) {
+                        for (int x = fromX; x <= toX; x++) {
+                            BlockState state = palette.get(blockData.get(x - originX, y - originY, z - originZ));
+                            if (!setAir && state.isAir()) continue;
+                            section.setBlockState(x & 0x0F, y & 0x0F, z & 0x0F, state, false);
+
+                            pos.set(x, y, z);
+                            lightingProvider.checkBlock(pos);
+                            if (watched) serverWorld.getChunkManager().markForUpdate(pos);
                         }
                     }
                 }
-
-//                setTime += System.nanoTime() - setStart;
-//                long relightStart = System.nanoTime();
-//
-//                chunk.setLightOn(false);
-//                relightTime += System.nanoTime() - relightStart;
+            } finally {
+                section.unlock();
             }
+            if (ChunkSection.isEmpty(section)) lightingProvider.setSectionStatus(sectionPos, true);
         }
 
-        // TODO: update region
-        LOGGER.debug("Set block states in " + setTime / 1000000 + " ms and relit chunks/cubes in " + relightTime / 1000000);
+        Heightmap.populateHeightmaps(chunk, EnumSet.of(Heightmap.Type.MOTION_BLOCKING, Heightmap.Type.MOTION_BLOCKING_NO_LEAVES, Heightmap.Type.OCEAN_FLOOR, Heightmap.Type.WORLD_SURFACE));
+        chunk.setShouldSave(true);
     }
 
     @Override
@@ -0,0 +1,122 @@
+package org.dimdev.dimcore.schematic;
+
+import java.io.BufferedInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The size and version of a schematic, read from a compressed schematic file without decoding the rest of it. Tags
+ * other than the header fields are skipped without being parsed into NBT objects, and reading stops as soon as the
+ * size is known.
+ */
+public class SchematicHeader {
+    private static final int TAG_END = 0;
+    private static final int TAG_COMPOUND = 10;
+
+    public int version = 1;
+    public short sizeX = -1;
+    public short sizeY = -1;
+    public short sizeZ = -1;
+
+    public static SchematicHeader readCompressed(InputStream in) throws IOException {
+        return read(new DataInputStream(new BufferedInputStream(new GZIPInputStream(in))));
+    }
+
+    public static SchematicHeader read(DataInput in) throws IOException {
+        if (in.readByte() != TAG_COMPOUND) throw new IOException("Schematic root tag isn't a compound");
+        in.readUTF(); // Root name
+
+        SchematicHeader header = new SchematicHeader();
+        byte type;
+        while (!header.isComplete() && (type = in.readByte()) != TAG_END) {
+            String name = in.readUTF();
+            switch (name) {
+                case "Version":
+                    header.version = in.readInt();
+                    break;
+                case "Width":
+                    header.sizeX = in.readShort();
+                    break;
+                case "Height":
+                    header.sizeY = in.readShort();
+                    break;
+                case "Length":
+                    header.sizeZ = in.readShort();
+                    break;
+                default:
+                    skipTag(in, type);
+            }
+        }
+
+        if (!header.isComplete()) throw new IOException("Schematic is missing its Width, Height or Length");
+        return header;
+    }
+
+    private boolean isComplete() {
+        return sizeX >= 0 && sizeY >= 0 && sizeZ >= 0;
+    }
+
+    /**
+     * Skips the payload of a tag of the given type.
+     */
+    static void skipTag(DataInput in, byte type) throws IOException {
+        switch (type) {
+            case 1: // Byte
+                skip(in, 1);
+                break;
+            case 2: // Short
+                skip(in, 2);
+                break;
+            case 3: // Int
+            case 5: // Float
+                skip(in, 4);
+                break;
+            case 4: // Long
+            case 6: // Double
+                skip(in, 8);
+                break;
+            case 7: // Byte array
+                skip(in, in.readInt());
+                break;
+            case 8: // String
+                skip(in, in.readUnsignedShort());
+                break;
+            case 9: // List
+                byte elementType = in.readByte();
+                int length = in.readInt();
+                for (int i = 0; i < length; i++) {
+                    skipTag(in, elementType);
+                }
+                break;
+            case TAG_COMPOUND:
+                byte entryType;
+                while ((entryType = in.readByte()) != TAG_END) {
+                    skip(in, in.readUnsignedShort()); // Name
+                    skipTag(in, entryType);
+                }
+                break;
+            case 11: // Int array
+                skip(in, in.readInt() * 4L);
+                break;
+            case 12: // Long array
+                skip(in, in.readInt() * 8L);
+                break;
+            default:
+                throw new IOException("Unknown NBT tag type " + type);
+        }
+    }
+
+    static void skip(DataInput in, long count) throws IOException {
+        while (count > 0) {
+            int skipped = in.skipBytes((int) Math.min(count, Integer.MAX_VALUE));
+            if (skipped <= 0) {
+                in.readByte(); // skipBytes may skip nothing before the end of the stream, this throws if it's reached
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package org.dimdev.dimcore.schematic;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.DoubleTag;
+import net.minecraft.nbt.ListTag;
+import net.minecraft.nbt.PositionTracker;
+
+/**
+ * Reads a compressed schematic file as a stream, without first reading it into a {@link CompoundTag}. Only the blocks,
+ * block entities and entities of a range of sections (16 block layers) can be read, the rest of the file is skipped.
+ * <p>
+ * A partially read schematic is the requested region as a schematic of its own: its height is the height of the
+ * region and its y coordinates start at the bottom of the region, so it should be placed {@code minSection * 16}
+ * blocks higher than the whole schematic would be. To read only the size, see {@link SchematicHeader}.
+ */
+public final class SchematicReader {
+    private static final byte TAG_END = 0;
+    private static final byte TAG_INT = 3;
+    private static final byte TAG_DOUBLE = 6;
+    private static final byte TAG_LIST = 9;
+    private static final byte TAG_COMPOUND = 10;
+
+    private SchematicReader() {}
+
+    public static Schematic readCompressed(InputStream in) throws IOException {
+        return readCompressed(in, 0, Integer.MAX_VALUE >> 4);
+    }
+
+    /**
+     * @param minSection The lowest section to read, relative to the bottom of the schematic
+     * @param maxSection The highest section to read, inclusive
+     */
+    public static Schematic readCompressed(InputStream in, int minSection, int maxSection) throws IOException {
+        return read(new DataInputStream(new BufferedInputStream(new GZIPInputStream(in))), minSection, maxSection);
+    }
+
+    public static Schematic read(DataInput in, int minSection, int maxSection) throws IOException {
+        if (in.readByte() != TAG_COMPOUND) throw new IOException("Schematic root tag isn't a compound");
+        in.readUTF(); // Root name
+
+        Schematic schematic = new Schematic();
+        short sizeX = -1;
+        short sizeY = -1;
+        short sizeZ = -1;
+        Map<Integer, String> paletteMap = new HashMap<>();
+        boolean hasPaletteMax = false;
+        byte[] bufferedBlockData = null; // BlockData that came before the size, so it couldn't be streamed
+        CompoundTag metadata = null;
+
+        byte type;
+        while ((type = in.readByte()) != TAG_END) {
+            String name = in.readUTF();
+            switch (name) {
+                case "Version":
+                    schematic.version = in.readInt();
+                    break;
+                case "Metadata":
+                    metadata = CompoundTag.READER.read(in, 1, PositionTracker.DEFAULT);
+                    break;
+                case "Width":
+                    sizeX = in.readShort();
+                    break;
+                case "Height":
+                    sizeY = in.readShort();
+                    break;
+                case "Length":
+                    sizeZ = in.readShort();
+                    break;
+                case "Offset":
+                    int[] offset = new int[in.readInt()];
+                    for (int i = 0; i < offset.length; i++) {
+                        offset[i] = in.readInt();
+                    }
+                    schematic.offset = offset;
+                    break;
+                case "PaletteMax":
+                    schematic.paletteMax = in.readInt();
+                    hasPaletteMax = true;
+                    break;
+                case "Palette":
+                    byte entryType;
+                    while ((entryType = in.readByte()) != TAG_END) {
+                        String key = in.readUTF();
+                        if (entryType == TAG_INT) {
+                            paletteMap.put(in.readInt(), key);
+                        } else {
+                            SchematicHeader.skipTag(in, entryType);
+                        }
+                    }
+                    break;
+                case "BlockData":
+                    int length = in.readInt();
+                    if (sizeX >= 0 && sizeY >= 0 && sizeZ >= 0) {
+                        schematic.blockData = readBlockData(in, length, sizeX, sizeY, sizeZ, minSection, maxSection);
+                    } else {
+                        bufferedBlockData = new byte[length];
+                        in.readFully(bufferedBlockData);
+                    }
+                    break;
+                case "TileEntities":
+                    readTags(in, type, schematic.tileEntities);
+                    break;
+                case "Entities":
+                    readTags(in, type, schematic.entities);
+                    break;
+                default:
+                    SchematicHeader.skipTag(in, type);
+            }
+        }
+
+        if (sizeX < 0 || sizeY < 0 || sizeZ < 0) throw new IOException("Schematic is missing its Width, Height or Length");
+        int minY = getMinY(minSection, sizeY);
+        int maxY = Math.max(getMaxY(maxSection, sizeY), minY);
+        schematic.sizeX = sizeX;
+        schematic.sizeY = (short) (maxY - minY);
+        schematic.sizeZ = sizeZ;
+
+        CompoundTag root = new CompoundTag();
+        if (metadata != null) root.put("Metadata", metadata);
+        Schematic.readMetadata(schematic, root);
+
+        for (int i = 0; i < paletteMap.size(); i++) {
+            schematic.palette.add(Schematic.getBlockStateFromString(SchematicConverter.updateId(paletteMap.get(i))));
+        }
+        if (!hasPaletteMax) schematic.paletteMax = schematic.palette.size() - 1;
+
+        if (bufferedBlockData != null) {
+            DataInput blockDataIn = new DataInputStream(new ByteArrayInputStream(bufferedBlockData));
+            schematic.blockData = readBlockData(blockDataIn, bufferedBlockData.length, sizeX, sizeY, sizeZ, minSection, maxSection);
+        } else if (schematic.blockData == null) {
+            schematic.blockData = new PackedBlockData(schematic.sizeX, schematic.sizeY, schematic.sizeZ);
+        }
+
+        if (minY != 0 || maxY != sizeY) {
+            schematic.tileEntities.removeIf(tag -> !moveIntoRegion(tag, false, minY, maxY));
+            schematic.entities.removeIf(tag -> !moveIntoRegion(tag, true, minY, maxY));
+        }
+
+        SchematicRedstoneFixer.fixRedstone(schematic);
+        return schematic;
+    }
+
+    private static int getMinY(int minSection, int sizeY) {
+        return (int) Math.min(Math.max(minSection, 0) * 16L, sizeY);
+    }
+
+    private static int getMaxY(int maxSection, int sizeY) { // Exclusive
+        return (int) Math.max(Math.min((maxSection + 1L) * 16, sizeY), 0);
+    }
+
+    /**
+     * Decodes the varint palette indices of the layers in the section range and skips the others, see
+     * {@link Schematic#readBlockData}.
+     */
+    private static PackedBlockData readBlockData(DataInput in, int length, int sizeX, int sizeY, int sizeZ, int minSection, int maxSection) throws IOException {
+        int minY = getMinY(minSection, sizeY);
+        int maxY = Math.max(getMaxY(maxSection, sizeY), minY);
+        int layerSize = sizeX * sizeZ;
+        int start = minY * layerSize;
+        int end = maxY * layerSize;
+        PackedBlockData blockData = new PackedBlockData(sizeX, maxY - minY, sizeZ);
+
+        int read = 0;
+        int index = 0;
+        while (read < length && index < end) {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                if (read == length) throw new IOException("BlockData ends in the middle of a varint");
+                if (shift > 28) throw new IOException("BlockData contains a varint longer than 5 bytes");
+                b = in.readByte();
+                read++;
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            if (index >= start) blockData.set(index - start, value);
+            index++;
+        }
+        SchematicHeader.skip(in, length - read); // Layers above the region
+        return blockData;
+    }
+
+    /**
+     * Reads a list of block entity or entity tags. They're only filtered by region once the whole file is read, since
+     * the height might come after them.
+     */
+    private static void readTags(DataInput in, byte type, List<CompoundTag> tags) throws IOException {
+        if (type != TAG_LIST) {
+            SchematicHeader.skipTag(in, type);
+            return;
+        }
+        byte elementType = in.readByte();
+        int length = in.readInt();
+        for (int i = 0; i < length; i++) {
+            if (elementType == TAG_COMPOUND) {
+                tags.add(CompoundTag.READER.read(in, 1, PositionTracker.DEFAULT));
+            } else {
+                SchematicHeader.skipTag(in, elementType);
+            }
+        }
+    }
+
+    /**
+     * Moves the y coordinate of a block entity or entity tag down to the bottom of the region.
+     *
+     * @return Whether the tag is in the region
+     */
+    private static boolean moveIntoRegion(CompoundTag tag, boolean entity, int minY, int maxY) {
+        if (entity && tag.contains("Pos")) {
+            ListTag pos = tag.getList("Pos", TAG_DOUBLE);
+            double y = pos.getDouble(1);
+            if (y < minY || y >= maxY) return false;
+            ListTag movedPos = new ListTag();
+            movedPos.add(DoubleTag.of(pos.getDouble(0)));
+            movedPos.add(DoubleTag.of(y - minY));
+            movedPos.add(DoubleTag.of(pos.getDouble(2)));
+            tag.put("Pos", movedPos);
+        } else if (entity) {
+            double y = tag.getDouble("y");
+            if (y < minY || y >= maxY) return false;
+            tag.putDouble("y", y - minY);
+        } else {
+            int y = tag.getInt("y");
+            if (y < minY || y >= maxY) return false;
+            tag.putInt("y", y - minY);
+        }
+        return true;
+    }
+}
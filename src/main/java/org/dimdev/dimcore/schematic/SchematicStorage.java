@@ -6,7 +6,6 @@ import java.util.concurrent.ExecutionException;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 
-import net.minecraft.nbt.NbtIo;
 import net.minecraft.resource.ResourceManager;
 import net.minecraft.util.Identifier;
 
@@ -22,7 +21,7 @@ public class SchematicStorage {
         try {
             return cache.get(id, () -> {
                         try (InputStream in = resourceManager.getResource(id).getInputStream()) {
-                            return Schematic.fromTag(NbtIo.readCompressed(in));
+                            return SchematicReader.readCompressed(in);
                         }
                     }
             );
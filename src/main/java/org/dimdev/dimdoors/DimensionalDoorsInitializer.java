@@ -1,6 +1,8 @@
 package org.dimdev.dimdoors;
 
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerChunkEvents;
 import net.fabricmc.fabric.api.event.lifecycle.v1.ServerLifecycleEvents;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerTickEvents;
 import net.minecraft.server.MinecraftServer;
 import net.minecraft.server.world.ServerWorld;
 import net.minecraft.util.registry.RegistryKey;
@@ -11,7 +13,11 @@ import org.dimdev.dimdoors.block.entity.ModBlockEntityTypes;
 import org.dimdev.dimdoors.command.ModCommands;
 import org.dimdev.dimdoors.entity.ModEntityTypes;
 import org.dimdev.dimdoors.item.ModItems;
+import org.dimdev.dimdoors.pockets.PocketGenerationQueue;
+import org.dimdev.dimdoors.pockets.PocketPool;
+import org.dimdev.dimdoors.pockets.PocketTemplate;
 import org.dimdev.dimdoors.pockets.SchematicHandler;
+import org.dimdev.dimdoors.rift.registry.RiftRegistry;
 import org.dimdev.dimdoors.rift.targets.EscapeTarget;
 import org.dimdev.dimdoors.rift.targets.GlobalReference;
 import org.dimdev.dimdoors.rift.targets.LimboTarget;
@@ -29,6 +35,7 @@ import org.dimdev.dimdoors.sound.ModSoundEvents;
 import org.dimdev.dimdoors.world.ModBiomes;
 import org.dimdev.dimdoors.world.ModDimensions;
 import org.dimdev.dimdoors.world.feature.ModFeatures;
+import org.dimdev.dimdoors.world.pocket.PocketRegistry;
 
 import net.minecraft.util.Identifier;
 
@@ -50,7 +57,21 @@ public class DimensionalDoorsInitializer implements ModInitializer {
 
     @Override
     public void onInitialize() {
+        ServerLifecycleEvents.SERVER_STARTING.register(server -> PocketTemplate.initPlaceholders()); // On the server thread, before any pocket is generated
         ServerLifecycleEvents.SERVER_STARTED.register(DimensionalDoorsInitializer::setServer);
+        ServerLifecycleEvents.SERVER_STOPPING.register(server -> { // Before the worlds are saved
+            PocketGenerationQueue.INSTANCE.clear();
+            PocketPool.INSTANCE.clear();
+        });
+        ServerLifecycleEvents.SERVER_STOPPED.register(server -> PocketRegistry.clearInstances());
+        ServerTickEvents.END_SERVER_TICK.register(server -> {
+            PocketGenerationQueue.INSTANCE.tick();
+            PocketPool.INSTANCE.tick();
+            RiftRegistry.instance().flushNotifications();
+        });
+        ServerChunkEvents.CHUNK_LOAD.register((world, chunk) -> {
+            if (getServer() == world.getServer()) RiftRegistry.instance().onChunkLoad(world, chunk); // Spawn chunks load before the server has started
+        });
 
         ModBlocks.init();
         ModItems.init();
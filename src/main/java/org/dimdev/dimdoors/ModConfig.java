@@ -22,6 +22,7 @@ public final class ModConfig {
         public boolean useEnderPearlsInCrafting = false;
         public double endermanSpawnChance = 0.001;
         public double endermanAggressiveChance = 0.5;
+        public double randomLinkWeightTolerance = 0.001; // Fraction of the total link weight that may be skipped when picking a random rift
     }
 
     public static class Pockets {
@@ -30,7 +31,12 @@ public final class ModConfig {
         public int privatePocketSize = 2;
         public int publicPocketSize = 1;
         public boolean loadAllSchematics = false;
-        public int cachedSchematics = 10;
+        public int schematicCacheSize = 65536; // In kilobytes
+        public boolean mapSchematics = true; // Keep decoded schematics in memory-mapped files rather than on the heap
+        public int depthBucketSize = 5;
+        public int pocketGenerationBudget = 10;
+        public int pocketPoolSize = 2;
+        public boolean deferLootFilling = false; // Fill pocket containers when they're first opened rather than when the pocket is generated
     }
 
     public static class World {
@@ -8,9 +8,8 @@ import net.minecraft.nbt.Tag;
 import net.minecraft.util.Language;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.dimdev.dimdoors.pockets.PocketTemplate;
+import org.dimdev.dimdoors.pockets.PocketGenerationQueue;
 import org.dimdev.dimdoors.rift.registry.LinkProperties;
-import org.dimdev.dimdoors.rift.registry.Rift;
 import org.dimdev.dimdoors.rift.registry.RiftRegistry;
 import org.dimdev.dimdoors.rift.targets.EntityTarget;
 import org.dimdev.dimdoors.rift.targets.MessageTarget;
@@ -112,7 +111,7 @@ public abstract class RiftBlockEntity extends BlockEntity implements BlockEntity
     }
 
     public boolean isRegistered() {
-        return !PocketTemplate.isReplacingPlaceholders() && RiftRegistry.instance().isRiftAt(new Location((ServerWorld) world, pos));
+        return world != null && RiftRegistry.instance().isRiftAt(world.getRegistryKey(), pos); // Not registered while it's only used to create data, see PocketTemplate.resolvePlaceholder
     }
 
     public void register() {
@@ -135,15 +134,15 @@ public abstract class RiftBlockEntity extends BlockEntity implements BlockEntity
 
     public void unregister() {
         if (isRegistered()) {
-            RiftRegistry.instance().removeRift(new Location((ServerWorld) world, pos));
+            Location loc = new Location((ServerWorld) world, pos);
+            RiftRegistry.instance().removeRift(loc);
+            PocketGenerationQueue.INSTANCE.cancel(loc); // A pocket that was being generated for the rift can't be entered anymore
         }
     }
 
     public void updateType() {
         if (!isRegistered()) return;
-        Rift rift = RiftRegistry.instance().getRift(new Location((ServerWorld) world, pos));
-        rift.isDetached = isDetached();
-        rift.markDirty();
+        RiftRegistry.instance().setDetached(new Location((ServerWorld) world, pos), isDetached());
     }
 
     public void handleTargetGone(Location location) {
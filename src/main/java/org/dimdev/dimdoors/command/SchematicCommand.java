@@ -4,10 +4,9 @@ import java.io.InputStream;
 
 import com.mojang.brigadier.CommandDispatcher;
 import com.mojang.brigadier.arguments.StringArgumentType;
-import org.dimdev.dimcore.schematic.Schematic;
 import org.dimdev.dimcore.schematic.SchematicConverter;
+import org.dimdev.dimcore.schematic.SchematicReader;
 
-import net.minecraft.nbt.NbtIo;
 import net.minecraft.server.command.CommandManager;
 import net.minecraft.server.command.ServerCommandSource;
 import net.minecraft.server.network.ServerPlayerEntity;
@@ -24,7 +23,7 @@ public class SchematicCommand {
                                             String id = StringArgumentType.getString(ctx, "schematic_name");
 
                                             try (InputStream in = SchematicCommand.class.getResourceAsStream("/data/dimdoors/pockets/schematic/ruins/" + id + ".schem")) {
-                                                Schematic.fromTag(NbtIo.readCompressed(in))
+                                                SchematicReader.readCompressed(in)
                                                         .place(
                                                                 (ServerWorld) player.world,
                                                                 (int) player.getPos().x,
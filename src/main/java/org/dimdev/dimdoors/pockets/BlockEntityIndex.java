@@ -0,0 +1,136 @@
+package org.dimdev.dimdoors.pockets;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.dimdev.dimcore.schematic.Schematic;
+import org.dimdev.dimdoors.block.entity.ModBlockEntityTypes;
+import org.dimdev.dimdoors.block.entity.RiftData;
+import org.dimdev.dimdoors.rift.targets.PocketEntranceMarker;
+import org.dimdev.dimdoors.rift.targets.PocketExitMarker;
+import org.dimdev.dimdoors.rift.targets.VirtualTarget;
+import org.dimdev.dimdoors.util.NbtUtil;
+import org.dimdev.dimdoors.util.math.WeightedSampler;
+
+import net.minecraft.block.entity.BlockEntity;
+import net.minecraft.block.entity.BlockEntityType;
+import net.minecraft.block.entity.ChestBlockEntity;
+import net.minecraft.block.entity.DispenserBlockEntity;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.util.Identifier;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.registry.Registry;
+
+/**
+ * The positions of the block entities of a template's schematic that matter when setting up a pocket: its rifts,
+ * split by what their destination marks, and the containers that get loot. Positions are relative to the schematic.
+ */
+public final class BlockEntityIndex {
+    private final List<BlockPos> entrances; // Rifts with a PocketEntranceMarker
+    private final WeightedSampler<BlockPos> entranceSampler;
+    private final List<BlockPos> exits; // Rifts with a PocketExitMarker
+    private final List<BlockPos> otherRifts;
+    private final List<BlockPos> chests;
+    private final List<BlockPos> dispensers;
+
+    private BlockEntityIndex(List<BlockPos> entrances, WeightedSampler<BlockPos> entranceSampler, List<BlockPos> exits, List<BlockPos> otherRifts, List<BlockPos> chests, List<BlockPos> dispensers) {
+        this.entrances = entrances;
+        this.entranceSampler = entranceSampler;
+        this.exits = exits;
+        this.otherRifts = otherRifts;
+        this.chests = chests;
+        this.dispensers = dispensers;
+    }
+
+    /**
+     * Indexes a schematic whose placeholders were replaced, resolving block entity placeholders like they are when
+     * the schematic is placed.
+     */
+    public static BlockEntityIndex of(Schematic schematic) {
+        List<BlockPos> entrances = new ArrayList<>();
+        WeightedSampler.Builder<BlockPos> entranceSampler = WeightedSampler.builder();
+        List<BlockPos> exits = new ArrayList<>();
+        List<BlockPos> otherRifts = new ArrayList<>();
+        List<BlockPos> chests = new ArrayList<>();
+        List<BlockPos> dispensers = new ArrayList<>();
+        Map<String, BlockEntity> blockEntities = new HashMap<>(); // Block entity id -> an instance, to check its class
+
+        for (CompoundTag schematicTag : schematic.tileEntities) {
+            BlockPos pos = new BlockPos(schematicTag.getInt("x"), schematicTag.getInt("y"), schematicTag.getInt("z"));
+            CompoundTag tag = PocketTemplate.resolvePlaceholder(schematicTag);
+            String id = tag.getString("id");
+
+            if (isRift(id)) {
+                VirtualTarget destination = tag.contains("data") ? NbtUtil.deserialize(tag.get("data"), RiftData.CODEC).getDestination() : null;
+                if (destination instanceof PocketEntranceMarker) {
+                    entrances.add(pos);
+                    entranceSampler.add(pos, ((PocketEntranceMarker) destination).getWeight());
+                } else if (destination instanceof PocketExitMarker) {
+                    exits.add(pos);
+                } else {
+                    otherRifts.add(pos);
+                }
+            } else {
+                BlockEntity blockEntity = blockEntities.computeIfAbsent(id, BlockEntityIndex::instantiate);
+                if (blockEntity instanceof ChestBlockEntity) {
+                    chests.add(pos);
+                } else if (blockEntity instanceof DispenserBlockEntity) {
+                    dispensers.add(pos);
+                }
+            }
+        }
+
+        return new BlockEntityIndex(
+                Collections.unmodifiableList(entrances),
+                entranceSampler.build(),
+                Collections.unmodifiableList(exits),
+                Collections.unmodifiableList(otherRifts),
+                Collections.unmodifiableList(chests),
+                Collections.unmodifiableList(dispensers));
+    }
+
+    private static boolean isRift(String id) {
+        return id.equals(BlockEntityType.getId(ModBlockEntityTypes.ENTRANCE_RIFT).toString())
+               || id.equals(BlockEntityType.getId(ModBlockEntityTypes.DETACHED_RIFT).toString());
+    }
+
+    private static BlockEntity instantiate(String id) {
+        Identifier identifier = Identifier.tryParse(id);
+        BlockEntityType<?> type = identifier == null ? null : Registry.BLOCK_ENTITY_TYPE.get(identifier);
+        return type == null ? null : type.instantiate();
+    }
+
+    public List<BlockPos> getEntrances() {
+        return entrances;
+    }
+
+    /**
+     * @return The entrances, weighted by their marker's weight
+     */
+    public WeightedSampler<BlockPos> getEntranceSampler() {
+        return entranceSampler;
+    }
+
+    public List<BlockPos> getExits() {
+        return exits;
+    }
+
+    public List<BlockPos> getOtherRifts() {
+        return otherRifts;
+    }
+
+    public int getRiftCount() {
+        return entrances.size() + exits.size() + otherRifts.size();
+    }
+
+    public List<BlockPos> getChests() {
+        return chests;
+    }
+
+    public List<BlockPos> getDispensers() {
+        return dispensers;
+    }
+}
@@ -0,0 +1,286 @@
+package org.dimdev.dimdoors.pockets;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.dimdev.dimcore.schematic.Schematic;
+import org.dimdev.dimdoors.ModConfig;
+import org.dimdev.dimdoors.rift.registry.LinkProperties;
+import org.dimdev.dimdoors.rift.targets.VirtualTarget;
+import org.dimdev.dimdoors.util.Location;
+import org.dimdev.dimdoors.world.pocket.Pocket;
+import org.dimdev.dimdoors.world.pocket.PocketRegistry;
+import org.dimdev.dimdoors.world.pocket.VirtualLocation;
+
+import net.minecraft.server.world.ServerWorld;
+
+/**
+ * Generates pockets over several ticks rather than all at once. The schematic is decoded on another thread, then its
+ * blocks are placed a chunk at a time, spending at most {@code ModConfig.POCKETS.pocketGenerationBudget} milliseconds
+ * of every tick (but always at least one chunk). The pocket is set up once all of its blocks are placed, in a tick of
+ * its own.
+ * <p>
+ * Generation is either requested on behalf of a rift, which can claim the pocket once it's done, or for a pocket that
+ * is only prepared and linked later (see {@link PocketPool}).
+ */
+public class PocketGenerationQueue {
+    private static final Logger LOGGER = LogManager.getLogger();
+    public static final PocketGenerationQueue INSTANCE = new PocketGenerationQueue();
+
+    private final Map<Location, Task> tasks = new HashMap<>(); // Requesting rift -> task
+    private final List<Task> queue = new ArrayList<>(); // Unfinished tasks, oldest first
+
+    /**
+     * Starts generating a pocket for a rift.
+     *
+     * @return The task, or null if no template could be found
+     */
+    public Task generate(Location requester, ServerWorld world, PocketTemplate template, VirtualLocation virtualLocation, VirtualTarget linkTo, LinkProperties linkProperties) {
+        if (template == null) return null;
+        LOGGER.info("Queueing generation of pocket from template " + template.getId() + " at virtual location " + virtualLocation);
+
+        Task task = new Task(world, template, newPocket(world, template), true, linkTo, linkProperties, null);
+        task.pocket.setVirtualLocation(virtualLocation);
+        start(task);
+        tasks.put(requester, task);
+        return task;
+    }
+
+    /**
+     * Starts generating a pocket that is only prepared and not linked, see {@link PocketTemplate#prepare}.
+     *
+     * @param onDone Called with the task once the pocket is done or failed
+     */
+    public Task generateUnlinked(ServerWorld world, PocketTemplate template, Consumer<Task> onDone) {
+        LOGGER.debug("Queueing generation of unlinked pocket from template " + template.getId());
+        Task task = new Task(world, template, newPocket(world, template), false, null, null, onDone);
+        start(task);
+        return task;
+    }
+
+    /**
+     * @return Whether no pockets are being generated
+     */
+    public boolean isIdle() {
+        return queue.isEmpty();
+    }
+
+    private static Pocket newPocket(ServerWorld world, PocketTemplate template) {
+        Pocket pocket = PocketRegistry.instance(world.getRegistryKey()).newPocket();
+        pocket.setSize(template.getSize() * 16, template.getSize() * 16, template.getSize() * 16);
+        return pocket;
+    }
+
+    private void start(Task task) {
+        Schematic cached = SchematicHandler.INSTANCE.getCachedSchematic(task.template);
+        if (cached != null) {
+            task.startPlacing(cached);
+        } else {
+            task.decoding = CompletableFuture.supplyAsync(task.template::decodeSchematic);
+        }
+        queue.add(task);
+    }
+
+    public Task getTask(Location requester) {
+        return tasks.get(requester);
+    }
+
+    /**
+     * Takes the pocket that was generated for a rift, if it's done. Failed tasks are dropped so that generation can
+     * be retried.
+     *
+     * @return The pocket, or null if it isn't done or failed
+     */
+    public Pocket claim(Location requester) {
+        Task task = tasks.get(requester);
+        if (task == null || task.state == State.DECODING || task.state == State.PLACING) return null;
+        tasks.remove(requester);
+        return task.state == State.DONE ? task.pocket : null;
+    }
+
+    /**
+     * Drops the task of a rift that was removed. An unfinished pocket is removed from the registry since nothing could
+     * enter it anymore. A finished one is kept, since its rifts are already registered.
+     */
+    public void cancel(Location requester) {
+        Task task = tasks.remove(requester);
+        if (task == null) return;
+        LOGGER.debug("Cancelling generation of pocket " + task.pocket.id + ", the rift at " + requester + " was removed");
+        task.cancel(); // It's removed from the queue on the next tick, this can be called while the queue is ticking
+    }
+
+    public void tick() {
+        if (queue.isEmpty()) return;
+
+        // Setting up a pocket is slower than placing a chunk, so it gets the budget of a tick of its own
+        for (Iterator<Task> iterator = queue.iterator(); iterator.hasNext(); ) {
+            Task task = iterator.next();
+            if (task.state == State.PLACING && task.isPlaced()) {
+                try {
+                    task.finish();
+                } catch (RuntimeException e) {
+                    LOGGER.error("Failed to set up pocket from template " + task.template.getId(), e);
+                    task.fail();
+                }
+                iterator.remove();
+                return;
+            }
+        }
+
+        long deadline = System.nanoTime() + ModConfig.POCKETS.pocketGenerationBudget * 1000000L;
+        boolean placedAny = false;
+
+        for (Iterator<Task> iterator = queue.iterator(); iterator.hasNext(); ) {
+            Task task = iterator.next();
+            if (task.state == State.DECODING && task.decoding.isDone()) {
+                Schematic schematic = task.decoding.exceptionally(e -> {
+                    LOGGER.error("Failed to decode schematic of template " + task.template.getId(), e);
+                    return null;
+                }).join();
+                if (schematic == null) {
+                    task.fail();
+                } else {
+                    SchematicHandler.INSTANCE.cacheSchematic(task.template, schematic);
+                    task.startPlacing(schematic);
+                }
+            }
+
+            while (task.state == State.PLACING && !task.isPlaced() && (!placedAny || System.nanoTime() < deadline)) {
+                try {
+                    task.placeNextChunk();
+                } catch (RuntimeException e) {
+                    LOGGER.error("Failed to generate pocket from template " + task.template.getId(), e);
+                    task.fail();
+                }
+                placedAny = true;
+            }
+
+            if (task.state == State.DONE || task.state == State.FAILED) iterator.remove();
+            if (placedAny && System.nanoTime() >= deadline) break;
+        }
+    }
+
+    /**
+     * Cancels all tasks, for when the server stops. This must happen before the worlds are saved, since the pockets
+     * that weren't done yet are removed from the registry. Their blocks are left as they are. Finished pockets that
+     * weren't claimed by their rift yet are kept.
+     */
+    public void clear() {
+        for (Task task : queue) task.cancel();
+        tasks.clear();
+        queue.clear();
+    }
+
+    public enum State {
+        DECODING,
+        PLACING,
+        DONE,
+        FAILED
+    }
+
+    public static final class Task {
+        private final ServerWorld world;
+        private final PocketTemplate template;
+        private final Pocket pocket;
+        private final boolean link;
+        private final VirtualTarget linkTo;
+        private final LinkProperties linkProperties;
+        private final Consumer<Task> onDone;
+        private State state = State.DECODING;
+        private CompletableFuture<Schematic> decoding;
+        private Schematic schematic;
+        private int[] chunkXs;
+        private int[] chunkZs;
+        private int nextChunk;
+
+        private Task(ServerWorld world, PocketTemplate template, Pocket pocket, boolean link, VirtualTarget linkTo, LinkProperties linkProperties, Consumer<Task> onDone) {
+            this.world = world;
+            this.template = template;
+            this.pocket = pocket;
+            this.link = link;
+            this.linkTo = linkTo;
+            this.linkProperties = linkProperties;
+            this.onDone = onDone;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        public Pocket getPocket() {
+            return pocket;
+        }
+
+        public PocketTemplate getTemplate() {
+            return template;
+        }
+
+        private void startPlacing(Schematic schematic) {
+            this.schematic = schematic;
+            int minChunkX = pocket.box.minX >> 4;
+            int minChunkZ = pocket.box.minZ >> 4;
+            int maxChunkX = pocket.box.minX + schematic.sizeX - 1 >> 4;
+            int maxChunkZ = pocket.box.minZ + schematic.sizeZ - 1 >> 4;
+            int count = (maxChunkX - minChunkX + 1) * (maxChunkZ - minChunkZ + 1);
+            chunkXs = new int[count];
+            chunkZs = new int[count];
+            int i = 0;
+            for (int chunkX = minChunkX; chunkX <= maxChunkX; chunkX++) {
+                for (int chunkZ = minChunkZ; chunkZ <= maxChunkZ; chunkZ++) {
+                    chunkXs[i] = chunkX;
+                    chunkZs[i] = chunkZ;
+                    i++;
+                }
+            }
+            nextChunk = 0;
+            state = State.PLACING;
+        }
+
+        private boolean isPlaced() {
+            return nextChunk >= chunkXs.length;
+        }
+
+        private void placeNextChunk() {
+            schematic.setChunkBlocks(world, pocket.box.minX, pocket.box.minY, pocket.box.minZ, chunkXs[nextChunk], chunkZs[nextChunk]);
+            nextChunk++;
+        }
+
+        /**
+         * Places the block entities and entities and sets up the pocket, once all of its blocks are placed.
+         */
+        private void finish() {
+            schematic.placeBlockEntities(world, pocket.box.minX, pocket.box.minY, pocket.box.minZ, PocketTemplate::resolvePlaceholder);
+            if (link) {
+                template.setup(pocket, schematic, linkTo, linkProperties);
+            } else {
+                template.prepare(pocket, schematic);
+            }
+            LOGGER.info("Finished generating pocket " + pocket.id + " from template " + template.getId());
+            LOGGER.debug(SchematicHandler.INSTANCE.getSchematicCache());
+            schematic = null;
+            state = State.DONE;
+            if (onDone != null) onDone.accept(this);
+        }
+
+        private void fail() {
+            PocketRegistry.instance(world.getRegistryKey()).removePocket(pocket.id);
+            state = State.FAILED;
+            if (onDone != null) onDone.accept(this);
+        }
+
+        private void cancel() {
+            if (state == State.DONE || state == State.FAILED) return; // A finished pocket's rifts are already registered
+            if (decoding != null) decoding.cancel(false);
+            PocketRegistry.instance(world.getRegistryKey()).removePocket(pocket.id);
+            schematic = null;
+            state = State.FAILED;
+        }
+    }
+}
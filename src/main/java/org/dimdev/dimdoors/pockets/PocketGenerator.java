@@ -1,6 +1,5 @@
 package org.dimdev.dimdoors.pockets;
 
-import java.util.Random;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -8,6 +7,7 @@ import org.dimdev.dimdoors.DimensionalDoorsInitializer;
 import org.dimdev.dimdoors.ModConfig;
 import org.dimdev.dimdoors.rift.registry.LinkProperties;
 import org.dimdev.dimdoors.rift.targets.VirtualTarget;
+import org.dimdev.dimdoors.util.Location;
 import org.dimdev.dimdoors.util.WorldUtil;
 import org.dimdev.dimdoors.world.ModDimensions;
 import org.dimdev.dimdoors.world.pocket.Pocket;
@@ -24,7 +24,7 @@ public final class PocketGenerator {
 
         Pocket pocket = PocketRegistry.instance(world.getRegistryKey()).newPocket();
         pocketTemplate.place(pocket, setup);
-        pocket.virtualLocation = virtualLocation;
+        pocket.setVirtualLocation(virtualLocation);
         return pocket;
     }
 
@@ -47,6 +47,9 @@ public final class PocketGenerator {
 
     // TODO: size of public pockets should increase with depth
     public static Pocket generatePublicPocket(VirtualLocation virtualLocation, VirtualTarget linkTo, LinkProperties linkProperties) {
+        Pocket pocket = PocketPool.INSTANCE.takePublicPocket(virtualLocation, linkTo, linkProperties);
+        if (pocket != null) return pocket;
+
         PocketTemplate pocketTemplate = SchematicHandler.INSTANCE.getPublicPocketTemplate();
         return generatePocketFromTemplate(WorldUtil.getWorld(ModDimensions.PUBLIC), pocketTemplate, virtualLocation, linkTo, linkProperties);
     }
@@ -58,12 +61,30 @@ public final class PocketGenerator {
      * @return The newly-generated dungeon pockets
      */
     public static Pocket generateDungeonPocket(VirtualLocation virtualLocation, VirtualTarget linkTo, LinkProperties linkProperties) {
-        int depth = virtualLocation.depth;
-        float netherProbability = WorldUtil.getWorld(virtualLocation.world).getDimension().isUltrawarm() ? 1 : (float) depth / 200; // TODO: improve nether probability
-        Random random = new Random();
-        String group = random.nextFloat() < netherProbability ? "nether" : "ruins";
-        PocketTemplate pocketTemplate = SchematicHandler.INSTANCE.getRandomTemplate(group, depth, ModConfig.POCKETS.maxPocketSize, false);
+        String group = getDungeonGroup(virtualLocation);
+        Pocket pocket = PocketPool.INSTANCE.takeDungeonPocket(group, virtualLocation, linkTo, linkProperties);
+        if (pocket != null) return pocket;
 
+        PocketTemplate pocketTemplate = SchematicHandler.INSTANCE.getRandomTemplate(group, virtualLocation.depth, ModConfig.POCKETS.maxPocketSize, false);
         return generatePocketFromTemplate(WorldUtil.getWorld(ModDimensions.DUNGEON), pocketTemplate, virtualLocation, linkTo, linkProperties);
     }
+
+    /**
+     * Starts generating a dungeon pocket over the next ticks, see {@link PocketGenerationQueue}.
+     *
+     * @param requester The rift that will claim the pocket once it's done
+     * @param group     The template group, see {@link #getDungeonGroup}
+     * @return The generation task, or null if no template was found
+     */
+    public static PocketGenerationQueue.Task queueDungeonPocket(Location requester, String group, VirtualLocation virtualLocation, VirtualTarget linkTo, LinkProperties linkProperties) {
+        PocketTemplate pocketTemplate = SchematicHandler.INSTANCE.getRandomTemplate(group, virtualLocation.depth, ModConfig.POCKETS.maxPocketSize, false);
+        return PocketGenerationQueue.INSTANCE.generate(requester, WorldUtil.getWorld(ModDimensions.DUNGEON), pocketTemplate, virtualLocation, linkTo, linkProperties);
+    }
+
+    /**
+     * Chooses the template group of a dungeon at a virtual location.
+     */
+    public static String getDungeonGroup(VirtualLocation virtualLocation) {
+        return WorldUtil.getWorld(virtualLocation.world).getDimension().isUltrawarm() ? "nether" : SchematicHandler.INSTANCE.getRandomDungeonGroup(virtualLocation.depth);
+    }
 }
@@ -0,0 +1,175 @@
+package org.dimdev.dimdoors.pockets;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.dimdev.dimdoors.ModConfig;
+import org.dimdev.dimdoors.rift.registry.LinkProperties;
+import org.dimdev.dimdoors.rift.targets.VirtualTarget;
+import org.dimdev.dimdoors.util.WorldUtil;
+import org.dimdev.dimdoors.world.ModDimensions;
+import org.dimdev.dimdoors.world.pocket.Pocket;
+import org.dimdev.dimdoors.world.pocket.PocketRegistry;
+import org.dimdev.dimdoors.world.pocket.VirtualLocation;
+
+import net.minecraft.util.registry.RegistryKey;
+import net.minecraft.world.World;
+
+/**
+ * Keeps up to {@code ModConfig.POCKETS.pocketPoolSize} pockets generated ahead of time for each kind of pocket that
+ * was asked for, so that a rift can be given a pocket by just linking it. Dungeon pockets are pooled per template
+ * group and depth bucket ({@code ModConfig.POCKETS.depthBucketSize}).
+ * <p>
+ * Pooled pockets are reserved in the pocket registry but not linked or registered as rifts. The pool is only refilled
+ * while no other pockets are being generated, one pocket at a time. Kinds of pockets that weren't asked for in a while
+ * are dropped, and at most {@link #MAX_WANTED_KEYS} kinds are pooled. The pool isn't saved, the pockets that are
+ * dropped or still pooled when the server stops are removed from the registry.
+ */
+public class PocketPool {
+    private static final Logger LOGGER = LogManager.getLogger();
+    public static final PocketPool INSTANCE = new PocketPool();
+    private static final int MAX_WANTED_KEYS = 16;
+    private static final int WANTED_KEY_EXPIRY = 20 * 60 * 10; // Ticks without being asked for before a kind of pocket is dropped
+
+    private final Map<Key, Deque<PocketGenerationQueue.Task>> pockets = new HashMap<>();
+    private final LinkedHashMap<Key, Integer> wantedKeys = new LinkedHashMap<>(16, 0.75f, true); // Kinds of pockets that were asked for -> tick they were last asked for, least recently asked for first
+    private Key filling = null; // The kind of pocket being generated for the pool
+    private int ticks = 0;
+
+    /**
+     * Takes a pooled dungeon pocket and links it.
+     *
+     * @return The pocket, or null if none was ready
+     */
+    public Pocket takeDungeonPocket(String group, VirtualLocation virtualLocation, VirtualTarget linkTo, LinkProperties linkProperties) {
+        if (group == null) return null;
+        int depthBucket = Math.max(virtualLocation.depth, 0) / Math.max(ModConfig.POCKETS.depthBucketSize, 1);
+        return take(new Key(ModDimensions.DUNGEON, group, depthBucket), virtualLocation, linkTo, linkProperties);
+    }
+
+    /**
+     * Takes a pooled public pocket and links it.
+     *
+     * @return The pocket, or null if none was ready
+     */
+    public Pocket takePublicPocket(VirtualLocation virtualLocation, VirtualTarget linkTo, LinkProperties linkProperties) {
+        return take(new Key(ModDimensions.PUBLIC, "public", -1), virtualLocation, linkTo, linkProperties);
+    }
+
+    private Pocket take(Key key, VirtualLocation virtualLocation, VirtualTarget linkTo, LinkProperties linkProperties) {
+        if (ModConfig.POCKETS.pocketPoolSize <= 0) return null;
+        wantedKeys.put(key, ticks);
+        if (wantedKeys.size() > MAX_WANTED_KEYS) drop(wantedKeys.keySet().iterator().next());
+
+        Deque<PocketGenerationQueue.Task> ready = pockets.get(key);
+        PocketGenerationQueue.Task task = ready == null ? null : ready.poll();
+        if (task == null) return null;
+
+        Pocket pocket = task.getPocket();
+        LOGGER.debug("Using pooled pocket " + pocket.id + " at virtual location " + virtualLocation);
+        pocket.setVirtualLocation(virtualLocation);
+        task.getTemplate().link(pocket, linkTo, linkProperties);
+        return pocket;
+    }
+
+    /**
+     * Starts generating a pocket for the pool if nothing else is being generated and a kind of pocket that was asked
+     * for is running low.
+     */
+    public void tick() {
+        ticks++;
+        while (!wantedKeys.isEmpty()) {
+            Map.Entry<Key, Integer> eldest = wantedKeys.entrySet().iterator().next();
+            if (ticks - eldest.getValue() < WANTED_KEY_EXPIRY) break;
+            drop(eldest.getKey());
+        }
+
+        int poolSize = ModConfig.POCKETS.pocketPoolSize;
+        if (poolSize <= 0 || filling != null || !PocketGenerationQueue.INSTANCE.isIdle()) return;
+
+        for (Key key : wantedKeys.keySet()) {
+            Deque<PocketGenerationQueue.Task> ready = pockets.get(key);
+            if (ready != null && ready.size() >= poolSize) continue;
+
+            PocketTemplate template = key.getTemplate();
+            if (template == null) continue;
+            filling = key;
+            PocketGenerationQueue.INSTANCE.generateUnlinked(WorldUtil.getWorld(key.world), template, task -> {
+                filling = null;
+                if (task.getState() != PocketGenerationQueue.State.DONE) return;
+                if (wantedKeys.containsKey(key)) {
+                    pockets.computeIfAbsent(key, k -> new ArrayDeque<>()).add(task);
+                } else {
+                    remove(task); // Dropped while it was being generated
+                }
+            });
+            return;
+        }
+    }
+
+    /**
+     * Stops pooling a kind of pocket, removing its pooled pockets.
+     */
+    private void drop(Key key) {
+        LOGGER.debug("No longer pooling pockets of group " + key.group + " in depth bucket " + key.depthBucket);
+        wantedKeys.remove(key);
+        Deque<PocketGenerationQueue.Task> ready = pockets.remove(key);
+        if (ready != null) ready.forEach(PocketPool::remove);
+    }
+
+    private static void remove(PocketGenerationQueue.Task task) {
+        Pocket pocket = task.getPocket();
+        PocketRegistry.instance(pocket.world).removePocket(pocket.id);
+    }
+
+    /**
+     * Removes all pooled pockets, for when the server stops. This must happen before the worlds are saved.
+     */
+    public void clear() {
+        for (Deque<PocketGenerationQueue.Task> ready : pockets.values()) {
+            ready.forEach(PocketPool::remove);
+        }
+        pockets.clear();
+        wantedKeys.clear();
+        filling = null;
+        ticks = 0;
+    }
+
+    private static final class Key {
+        final RegistryKey<World> world;
+        final String group;
+        final int depthBucket; // -1 for pockets that don't depend on depth
+
+        Key(RegistryKey<World> world, String group, int depthBucket) {
+            this.world = world;
+            this.group = group;
+            this.depthBucket = depthBucket;
+        }
+
+        PocketTemplate getTemplate() {
+            if (depthBucket == -1) return SchematicHandler.INSTANCE.getPublicPocketTemplate();
+            int bucketSize = Math.max(ModConfig.POCKETS.depthBucketSize, 1);
+            int depth = depthBucket * bucketSize + bucketSize / 2;
+            return SchematicHandler.INSTANCE.getRandomTemplate(group, depth, ModConfig.POCKETS.maxPocketSize, false);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == this) return true;
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return depthBucket == other.depthBucket && world.equals(other.world) && group.equals(other.group);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(world, group, depthBucket);
+        }
+    }
+}
@@ -1,12 +1,17 @@
 package org.dimdev.dimdoors.pockets;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.dimdev.dimcore.schematic.MappedSchematic;
 import org.dimdev.dimcore.schematic.Schematic;
+import org.dimdev.dimdoors.ModConfig;
 import org.dimdev.dimdoors.block.entity.EntranceRiftBlockEntity;
 import org.dimdev.dimdoors.block.entity.ModBlockEntityTypes;
 import org.dimdev.dimdoors.block.entity.RiftBlockEntity;
@@ -19,19 +24,20 @@ import org.dimdev.dimdoors.rift.targets.PocketExitMarker;
 import org.dimdev.dimdoors.rift.targets.VirtualTarget;
 import org.dimdev.dimdoors.util.Location;
 import org.dimdev.dimdoors.util.WorldUtil;
-import org.dimdev.dimdoors.util.math.MathUtil;
+import org.dimdev.dimdoors.util.math.DepthCurve;
 import org.dimdev.dimdoors.world.pocket.Pocket;
 import org.dimdev.dimdoors.world.pocket.PocketRegistry;
 
-import net.minecraft.block.BlockState;
 import net.minecraft.block.entity.BlockEntity;
-import net.minecraft.block.entity.ChestBlockEntity;
-import net.minecraft.block.entity.DispenserBlockEntity;
+import net.minecraft.block.entity.LootableContainerBlockEntity;
 import net.minecraft.inventory.Inventory;
 import net.minecraft.loot.LootTable;
 import net.minecraft.loot.context.LootContext;
 import net.minecraft.loot.context.LootContextTypes;
 import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.DoubleTag;
+import net.minecraft.nbt.FloatTag;
+import net.minecraft.nbt.ListTag;
 import net.minecraft.server.world.ServerWorld;
 import net.minecraft.util.Identifier;
 import net.minecraft.util.math.BlockPos;
@@ -43,16 +49,21 @@ import net.minecraft.world.World;
  */
 public class PocketTemplate {
     private static final Logger LOGGER = LogManager.getLogger();
+    private static final Identifier DUNGEON_CHEST_LOOT = new Identifier("dimdoors:dungeon_chest");
+    private static final Identifier DISPENSER_LOOT = new Identifier("dimdoors:dispenser_projectiles");
     private final String group;
     private final String id;
     private final String type;
     private final String name;
     private final String author;
-    private Schematic schematic;
     private byte[] schematicBytecode;
+    private MappedSchematic mappedSchematic; // Used instead of the bytecode if the schematic was mapped
+    private BlockEntityIndex blockEntityIndex; // Built from the schematic the first time a pocket is prepared
     private int size; // number of chunks (16 blocks) on each side - 1
     private int baseWeight;
-    private static boolean isReplacingPlaceholders = false;
+    private DepthCurve depthWeight; // Multiplies the base weight depending on the depth, null if it doesn't
+    private static volatile Map<String, CompoundTag> blockEntityPlaceholders = Collections.emptyMap(); // Placeholder kind -> resolved data, see initPlaceholders
+    private static volatile Map<String, CompoundTag> entityPlaceholders = Collections.emptyMap();
 
     public PocketTemplate(String group, String id, String type, String name, String author) {
         this.group = group;
@@ -62,106 +73,59 @@ public class PocketTemplate {
         this.author = author;
     }
 
-    public PocketTemplate(String group, String id, String type, String name, String author, Schematic schematic, byte[] schematicBytecode, int size, int baseWeight) {
+    public PocketTemplate(String group, String id, String type, String name, String author, byte[] schematicBytecode, int size, int baseWeight) {
         this.group = group;
         this.id = id;
         this.type = type;
         this.name = name;
         this.author = author;
-        this.schematic = schematic;
         this.schematicBytecode = schematicBytecode;
         this.size = size;
         this.baseWeight = baseWeight;
     }
 
-    public static boolean isReplacingPlaceholders() {
-        return PocketTemplate.isReplacingPlaceholders;
-    }
-
     public float getWeight(int depth) {
-        if (depth == -1) {
+        if (depth == -1 || depthWeight == null) {
             return baseWeight;
         } else {
-            return baseWeight; // TODO: make this actually dependend on the depth
+            return baseWeight * depthWeight.getValue(depth);
         }
     }
 
+    /**
+     * @return The depth after which the weight of this template no longer changes
+     */
+    public int getLastWeightDepth() {
+        return depthWeight == null ? 0 : depthWeight.getLastDepth();
+    }
+
+    public void setDepthWeight(DepthCurve depthWeight) {
+        this.depthWeight = depthWeight;
+    }
+
+    /**
+     * Replaces the entity placeholders of a freshly decoded schematic and checks that its block entity placeholders
+     * are known. Block entity placeholders stay in the schematic and are resolved by {@link #resolvePlaceholder} when
+     * it's placed.
+     */
     public static void replacePlaceholders(Schematic schematic) { // TODO: rift inheritance rather than placeholders
-        // Replace placeholders (some schematics will contain them)
-        isReplacingPlaceholders = true;
-        List<CompoundTag> tileEntities = new ArrayList<>();
         for (CompoundTag tileEntityNBT : schematic.tileEntities) {
-            if (tileEntityNBT.contains("placeholder")) {
-                int x = tileEntityNBT.getInt("x");
-                int y = tileEntityNBT.getInt("y");
-                int z = tileEntityNBT.getInt("z");
-
-                BlockState state = schematic.palette.get(schematic.blockData[x][y][z]);
-
-                CompoundTag newNBT = new CompoundTag();
-                EntranceRiftBlockEntity rift = ModBlockEntityTypes.ENTRANCE_RIFT.instantiate();
-                switch (tileEntityNBT.getString("placeholder")) {
-                    case "deeper_depth_door":
-                        rift.setPos(new BlockPos(x, y, z));
-                        rift.setProperties(DefaultDungeonDestinations.pocketLinkProperties);
-                        rift.setDestination(DefaultDungeonDestinations.deeperDungeonDestination);
-                        newNBT = rift.toTag(newNBT);
-                        break;
-                    case "less_deep_depth_door":
-                        rift.setPos(new BlockPos(x, y, z));
-                        rift.setProperties(DefaultDungeonDestinations.pocketLinkProperties);
-                        rift.setDestination(DefaultDungeonDestinations.shallowerDungeonDestination);
-                        newNBT = rift.toTag(newNBT);
-                        break;
-                    case "overworld_door":
-                        rift.setPos(new BlockPos(x, y, z));
-                        rift.setProperties(DefaultDungeonDestinations.pocketLinkProperties);
-                        rift.setDestination(DefaultDungeonDestinations.overworldDestination);
-                        newNBT = rift.toTag(newNBT);
-                        break;
-                    case "entrance_door":
-                        rift.setPos(new BlockPos(x, y, z));
-                        rift.setProperties(DefaultDungeonDestinations.pocketLinkProperties);
-                        rift.setDestination(DefaultDungeonDestinations.twoWayPocketEntrance);
-                        newNBT = rift.toTag(newNBT);
-                        break;
-                    case "gateway_portal":
-                        rift.setPos(new BlockPos(x, y, z));
-                        rift.setProperties(DefaultDungeonDestinations.overworldLinkProperties);
-                        rift.setDestination(DefaultDungeonDestinations.gatewayDestination);
-                        newNBT = rift.toTag(newNBT);
-                        break;
-                    default:
-                        throw new RuntimeException("Unknown tile entity placeholder: " + tileEntityNBT.getString("placeholder"));
-                }
-                // TODO: allow overriding some placeholder properties by copying other properties (not placeholder and x/y/z) to the new nbt
-                tileEntities.add(newNBT);
-            } else {
-                tileEntities.add(tileEntityNBT);
-            }
+            resolvePlaceholder(tileEntityNBT);
         }
-        schematic.tileEntities = tileEntities;
-
 
-        List<CompoundTag> entities = new ArrayList<>();
+        List<CompoundTag> entities = new ArrayList<>(schematic.entities.size());
         for (CompoundTag entitiesNBT : schematic.entities) {
             if (entitiesNBT.contains("placeholder")) {
-                double x = entitiesNBT.getDouble("x");
-                double y = entitiesNBT.getDouble("y");
-                double z = entitiesNBT.getDouble("z");
-                float yaw = entitiesNBT.getFloat("yaw");
-                float pitch = entitiesNBT.getFloat("pitch");
-
-                CompoundTag newNBT;
-                if ("monolith".equals(entitiesNBT.getString("placeholder"))) {
-                    MonolithEntity monolith = ModEntityTypes.MONOLITH.create(null);
-                    monolith.setPos(x, y, z);
-                    monolith.yaw = yaw;
-                    monolith.pitch = pitch;
-                    newNBT = monolith.toTag(new CompoundTag());
-                } else {
-                    throw new RuntimeException("Unknown entity placeholder: " + entitiesNBT.getString("placeholder"));
-                }
+                CompoundTag newNBT = getPlaceholder(entityPlaceholders, entitiesNBT.getString("placeholder"), "entity");
+                ListTag pos = new ListTag();
+                pos.add(DoubleTag.of(entitiesNBT.getDouble("x")));
+                pos.add(DoubleTag.of(entitiesNBT.getDouble("y")));
+                pos.add(DoubleTag.of(entitiesNBT.getDouble("z")));
+                newNBT.put("Pos", pos);
+                ListTag rotation = new ListTag();
+                rotation.add(FloatTag.of(entitiesNBT.getFloat("yaw")));
+                rotation.add(FloatTag.of(entitiesNBT.getFloat("pitch")));
+                newNBT.put("Rotation", rotation);
                 // TODO: allow overriding some placeholder properties by copying other properties (not placeholder and x/y/z) to the new nbt
                 entities.add(newNBT);
             } else {
@@ -169,7 +133,81 @@ public class PocketTemplate {
             }
         }
         schematic.entities = entities;
-        isReplacingPlaceholders = false;
+    }
+
+    /**
+     * Gets the block entity data that a block entity tag of a schematic stands for. Each call returns a new copy, so
+     * it can be modified by the caller.
+     *
+     * @return The resolved data, or the tag itself if it isn't a placeholder
+     */
+    public static CompoundTag resolvePlaceholder(CompoundTag tileEntityNBT) {
+        if (!tileEntityNBT.contains("placeholder")) return tileEntityNBT;
+        // TODO: allow overriding some placeholder properties by copying other properties (not placeholder and x/y/z) to the new nbt
+        return getPlaceholder(blockEntityPlaceholders, tileEntityNBT.getString("placeholder"), "tile entity");
+    }
+
+    private static CompoundTag getPlaceholder(Map<String, CompoundTag> placeholders, String placeholder, String kind) {
+        CompoundTag tag = placeholders.get(placeholder);
+        if (tag == null) {
+            if (placeholders.isEmpty()) throw new IllegalStateException("Placeholders haven't been initialized yet");
+            throw new RuntimeException("Unknown " + kind + " placeholder: " + placeholder);
+        }
+        return tag.copy();
+    }
+
+    /**
+     * Creates the data of every placeholder. This creates block entities and entities, so it must run on the server
+     * thread before any schematic is decoded, since schematics are also decoded asynchronously.
+     */
+    public static void initPlaceholders() {
+        Map<String, CompoundTag> blockEntities = new HashMap<>();
+        for (String placeholder : new String[]{"deeper_depth_door", "less_deep_depth_door", "overworld_door", "entrance_door", "gateway_portal"}) {
+            blockEntities.put(placeholder, createBlockEntityPlaceholder(placeholder));
+        }
+        Map<String, CompoundTag> entities = new HashMap<>();
+        entities.put("monolith", createEntityPlaceholder("monolith"));
+
+        blockEntityPlaceholders = Collections.unmodifiableMap(blockEntities);
+        entityPlaceholders = Collections.unmodifiableMap(entities);
+    }
+
+    private static CompoundTag createBlockEntityPlaceholder(String placeholder) {
+        EntranceRiftBlockEntity rift = ModBlockEntityTypes.ENTRANCE_RIFT.instantiate();
+        switch (placeholder) {
+            case "deeper_depth_door":
+                rift.setProperties(DefaultDungeonDestinations.pocketLinkProperties);
+                rift.setDestination(DefaultDungeonDestinations.deeperDungeonDestination);
+                break;
+            case "less_deep_depth_door":
+                rift.setProperties(DefaultDungeonDestinations.pocketLinkProperties);
+                rift.setDestination(DefaultDungeonDestinations.shallowerDungeonDestination);
+                break;
+            case "overworld_door":
+                rift.setProperties(DefaultDungeonDestinations.pocketLinkProperties);
+                rift.setDestination(DefaultDungeonDestinations.overworldDestination);
+                break;
+            case "entrance_door":
+                rift.setProperties(DefaultDungeonDestinations.pocketLinkProperties);
+                rift.setDestination(DefaultDungeonDestinations.twoWayPocketEntrance);
+                break;
+            case "gateway_portal":
+                rift.setProperties(DefaultDungeonDestinations.overworldLinkProperties);
+                rift.setDestination(DefaultDungeonDestinations.gatewayDestination);
+                break;
+            default:
+                throw new RuntimeException("Unknown tile entity placeholder: " + placeholder);
+        }
+        return rift.toTag(new CompoundTag());
+    }
+
+    private static CompoundTag createEntityPlaceholder(String placeholder) {
+        if ("monolith".equals(placeholder)) {
+            MonolithEntity monolith = ModEntityTypes.MONOLITH.create(null);
+            return monolith.toTag(new CompoundTag());
+        } else {
+            throw new RuntimeException("Unknown entity placeholder: " + placeholder);
+        }
     }
 
     public void place(Pocket pocket, boolean setup) {
@@ -180,123 +218,142 @@ public class PocketTemplate {
         int yBase = pocket.box.minY;
         int zBase = pocket.box.minZ;
 
-        //Converting the schematic from bytearray if needed
-        if (schematic == null) {
-            LOGGER.debug("Schematic is null, trying to reload from byteArray.");
-            schematic = SchematicHandler.INSTANCE.loadSchematicFromByteArray(schematicBytecode);
-            replacePlaceholders(schematic);
-        }
-
         //Place the schematic
         LOGGER.info("Placing new pocket using schematic " + id + " at x = " + xBase + ", z = " + zBase);
-        schematic.place(world, xBase, yBase, zBase);
-
-        SchematicHandler.INSTANCE.incrementUsage(this);
-        if (!setup && !SchematicHandler.INSTANCE.isUsedOftenEnough(this)) {
-            //remove schematic from "cache"
-            schematic = null;
-        }
+        getSchematic().place(world, xBase, yBase, zBase, PocketTemplate::resolvePlaceholder);
     }
 
     public void setup(Pocket pocket, VirtualTarget linkTo, LinkProperties linkProperties) {
-        int gridSize = PocketRegistry.instance(pocket.world).getGridSize();
-        ServerWorld world = WorldUtil.getWorld(pocket.world);
-        int xBase = pocket.box.minX;
-        int yBase = pocket.box.minY;
-        int zBase = pocket.box.minZ;
+        setup(pocket, getSchematic(), linkTo, linkProperties);
+    }
 
-        // Fill chests and make rift list
-        List<RiftBlockEntity> rifts = new ArrayList<>();
-        for (CompoundTag tileEntityNBT : schematic.tileEntities) {
-            BlockPos pos = new BlockPos(
-                    xBase + tileEntityNBT.getInt("x"),
-                    yBase + tileEntityNBT.getInt("y"),
-                    zBase + tileEntityNBT.getInt("z"));
-            BlockEntity tile = world.getBlockEntity(pos);
-
-            if (tile instanceof RiftBlockEntity) {
-                LOGGER.debug("Rift found in schematic at " + pos);
-                RiftBlockEntity rift = (RiftBlockEntity) tile;
-                rift
-                        .getDestination()
-                        .setLocation(
-                                new Location(
-                                        (ServerWorld) rift.getWorld(),
-                                        rift.getPos()));
-                rifts.add(rift);
-            } else if (tile instanceof Inventory) {
-                Inventory inventory = (Inventory) tile;
-                if (inventory.isEmpty()) {
-                    if (tile instanceof ChestBlockEntity || tile instanceof DispenserBlockEntity) {
-                        LootTable table;
-                        if (tile instanceof ChestBlockEntity) {
-                            LOGGER.debug("Now populating chest.");
-                            table = world.getServer().getLootManager().getTable(new Identifier("dimdoors:dungeon_chest"));
-                        } else { //(tile instanceof TileEntityDispenser)
-                            LOGGER.debug("Now populating dispenser.");
-                            table = world.getServer().getLootManager().getTable(new Identifier("dimdoors:dispenser_projectiles"));
-                        }
-                        LootContext ctx = new LootContext.Builder(world).random(world.random).build(LootContextTypes.CHEST);
-                        table.supplyInventory(inventory, ctx);
-                        LOGGER.debug("Inventory should be populated now. Chest is: " + (inventory.isEmpty() ? "empty." : "filled."));
-                        if (inventory.isEmpty()) {
-                            LOGGER.error(", however Inventory is: empty!");
-                        }
-                    }
-                }
+    /**
+     * Decodes this template's schematic without caching it or replacing its placeholders. This doesn't touch the
+     * world or the template, so it can be called from another thread.
+     */
+    public Schematic decodeSchematic() {
+        if (mappedSchematic != null) {
+            try {
+                return mappedSchematic.decode();
+            } catch (IOException | RuntimeException e) {
+                LOGGER.error("Mapped schematic of template " + id + " could not be decoded.", e);
+                return null;
             }
         }
+        return SchematicHandler.INSTANCE.loadSchematicFromByteArray(schematicBytecode);
+    }
 
-        // Find an entrance
+    /**
+     * Fills the containers and registers the rifts of a pocket that was placed from a schematic of this template.
+     */
+    public void setup(Pocket pocket, Schematic schematic, VirtualTarget linkTo, LinkProperties linkProperties) {
+        prepare(pocket, schematic);
+        link(pocket, linkTo, linkProperties);
+    }
 
-        HashMap<RiftBlockEntity, Float> entranceWeights = new HashMap<>();
+    /**
+     * Fills the containers of a pocket that was placed from a schematic of this template, without linking or
+     * registering anything. This is all of the setup that doesn't depend on where the pocket is entered from.
+     */
+    public void prepare(Pocket pocket, Schematic schematic) {
+        if (blockEntityIndex == null) blockEntityIndex = BlockEntityIndex.of(schematic);
+        ServerWorld world = WorldUtil.getWorld(pocket.world);
+        BlockPos origin = new BlockPos(pocket.box.minX, pocket.box.minY, pocket.box.minZ);
 
-        for (RiftBlockEntity rift : rifts) { // Find an entrance
-            if (rift.getDestination() instanceof PocketEntranceMarker) {
-                entranceWeights.put(rift, ((PocketEntranceMarker) rift.getDestination()).getWeight());
+        // Fill chests. With deferLootFilling, containers get their loot table and are only filled when first opened.
+        LootContext context = ModConfig.POCKETS.deferLootFilling ? null : new LootContext.Builder(world).random(world.random).build(LootContextTypes.CHEST);
+        int filled = fillContainers(world, origin, blockEntityIndex.getChests(), DUNGEON_CHEST_LOOT, context);
+        filled += fillContainers(world, origin, blockEntityIndex.getDispensers(), DISPENSER_LOOT, context);
+        LOGGER.debug((context == null ? "Set loot tables of " : "Populated ") + filled + " containers in pocket " + pocket.id);
+    }
+
+    /**
+     * Fills the empty containers at some positions from one loot table, resolving it only once.
+     *
+     * @param context The context to fill them with, or null to only set their loot table
+     * @return The number of containers that were filled
+     */
+    private static int fillContainers(ServerWorld world, BlockPos origin, List<BlockPos> positions, Identifier lootTableId, LootContext context) {
+        if (positions.isEmpty()) return 0;
+        LootTable table = world.getServer().getLootManager().getTable(lootTableId);
+        int filled = 0;
+        for (BlockPos pos : positions) {
+            BlockEntity tile = world.getBlockEntity(origin.add(pos));
+            if (!(tile instanceof Inventory) || !((Inventory) tile).isEmpty()) continue;
+            if (context == null && tile instanceof LootableContainerBlockEntity) {
+                ((LootableContainerBlockEntity) tile).setLootTable(lootTableId, world.random.nextLong());
+            } else {
+                table.supplyInventory((Inventory) tile, context != null ? context : new LootContext.Builder(world).random(world.random).build(LootContextTypes.CHEST));
             }
+            filled++;
         }
+        return filled;
+    }
 
-        if (entranceWeights.size() == 0) {
+    /**
+     * Chooses the entrance of a prepared pocket, links its exits back and registers its rifts.
+     */
+    public void link(Pocket pocket, VirtualTarget linkTo, LinkProperties linkProperties) {
+        ServerWorld world = WorldUtil.getWorld(pocket.world);
+        BlockPos origin = new BlockPos(pocket.box.minX, pocket.box.minY, pocket.box.minZ);
+
+        // Find an entrance
+        if (blockEntityIndex.getEntranceSampler().isEmpty()) {
             LOGGER.warn("Pocket had no possible entrance in schematic!");
             return;
         }
-        RiftBlockEntity selectedEntrance = MathUtil.weightedRandom(entranceWeights);
+        BlockPos selectedEntrance = blockEntityIndex.getEntranceSampler().sample();
 
         // Replace entrances with appropriate destinations
-        for (RiftBlockEntity rift : rifts) {
-            VirtualTarget dest = rift.getDestination();
-            if (dest instanceof PocketEntranceMarker) {
-                if (rift == selectedEntrance) {
-                    PocketRegistry.instance(world.getRegistryKey()).markDirty();
-                    rift.setDestination(((PocketEntranceMarker) dest).getIfDestination());
-                    rift.register();
-                    RiftRegistry.instance().addPocketEntrance(pocket, new Location((ServerWorld) rift.getWorld(), rift.getPos()));
-                } else {
-                    rift.setDestination(((PocketEntranceMarker) dest).getOtherwiseDestination());
-                }
+        List<RiftBlockEntity> rifts = new ArrayList<>(blockEntityIndex.getRiftCount());
+        for (BlockPos pos : blockEntityIndex.getEntrances()) {
+            RiftBlockEntity rift = getRift(world, origin.add(pos));
+            if (rift == null) continue;
+            rifts.add(rift);
+            if (!(rift.getDestination() instanceof PocketEntranceMarker)) continue;
+            PocketEntranceMarker dest = (PocketEntranceMarker) rift.getDestination();
+            if (pos.equals(selectedEntrance)) {
+                PocketRegistry.instance(world.getRegistryKey()).markDirty();
+                rift.setDestination(dest.getIfDestination());
+                rift.register();
+                RiftRegistry.instance().addPocketEntrance(pocket, new Location(world, rift.getPos()));
+            } else {
+                rift.setDestination(dest.getOtherwiseDestination());
             }
         }
+        for (BlockPos pos : blockEntityIndex.getExits()) {
+            RiftBlockEntity rift = getRift(world, origin.add(pos));
+            if (rift != null) rifts.add(rift);
+        }
+        for (BlockPos pos : blockEntityIndex.getOtherRifts()) {
+            RiftBlockEntity rift = getRift(world, origin.add(pos));
+            if (rift != null) rifts.add(rift);
+        }
 
-        // Link pocket exits back
+        // Link pocket exits back. This checks the current destinations, since entrances usually just became exits.
         for (RiftBlockEntity rift : rifts) {
-            VirtualTarget dest = rift.getDestination();
-            if (dest instanceof PocketExitMarker) {
+            if (rift.getDestination() instanceof PocketExitMarker) {
                 if (linkProperties != null) rift.setProperties(linkProperties);
                 rift.setDestination(rift.getProperties() == null || !rift.getProperties().oneWay ? linkTo : null);
             }
+            registerRift(rift);
         }
+    }
 
-        // register the rifts
-        for (RiftBlockEntity rift : rifts) {
-            rift.register();
-            rift.markDirty();
+    private static RiftBlockEntity getRift(ServerWorld world, BlockPos pos) {
+        BlockEntity blockEntity = world.getBlockEntity(pos);
+        if (!(blockEntity instanceof RiftBlockEntity)) {
+            LOGGER.warn("Schematic contained a rift at " + pos + " but there is no rift there");
+            return null;
         }
+        RiftBlockEntity rift = (RiftBlockEntity) blockEntity;
+        rift.getDestination().setLocation(new Location(world, pos));
+        return rift;
+    }
 
-        if (!SchematicHandler.INSTANCE.isUsedOftenEnough(this)) {
-            //remove schematic from "cache"
-            schematic = null;
-        }
+    private static void registerRift(RiftBlockEntity rift) {
+        rift.register();
+        rift.markDirty();
     }
 
     public String getGroup() {
@@ -319,8 +376,11 @@ public class PocketTemplate {
         return author;
     }
 
+    /**
+     * @return The decoded schematic of this template, from the cache if it's there
+     */
     public Schematic getSchematic() {
-        return schematic;
+        return SchematicHandler.INSTANCE.getSchematic(this);
     }
 
     public int getSize() {
@@ -331,11 +391,11 @@ public class PocketTemplate {
         return baseWeight;
     }
 
-    public void setSchematic(Schematic schematic) {
-        this.schematic = schematic;
-    }
-
     public void setSchematicBytecode(byte[] schematicBytecode) {
         this.schematicBytecode = schematicBytecode;
     }
+
+    public void setMappedSchematic(MappedSchematic mappedSchematic) {
+        this.mappedSchematic = mappedSchematic;
+    }
 }
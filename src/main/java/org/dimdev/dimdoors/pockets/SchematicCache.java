@@ -0,0 +1,125 @@
+package org.dimdev.dimdoors.pockets;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.dimdev.dimcore.schematic.Schematic;
+import org.dimdev.dimdoors.ModConfig;
+
+import net.minecraft.nbt.CompoundTag;
+
+/**
+ * Keeps the decoded schematics of recently used templates, evicting the least recently used ones once their estimated
+ * size exceeds {@code ModConfig.POCKETS.schematicCacheSize} kilobytes. Only used from the server thread.
+ */
+public class SchematicCache {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final int NBT_ENTRY_SIZE = 256; // Rough size of a block entity or entity tag, these aren't measured
+
+    private final Map<PocketTemplate, Entry> entries = new LinkedHashMap<>(16, 0.75f, true); // Least recently used first
+    private long size = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * @return The cached schematic of the template, or null if it isn't cached
+     */
+    public Schematic get(PocketTemplate template) {
+        Entry entry = entries.get(template);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.schematic;
+    }
+
+    /**
+     * Caches a decoded schematic, evicting least recently used schematics to make room for it. Schematics that are
+     * bigger than the whole cache aren't cached.
+     */
+    public void put(PocketTemplate template, Schematic schematic) {
+        remove(template);
+        long maxSize = ModConfig.POCKETS.schematicCacheSize * 1024L;
+        long schematicSize = estimateSize(schematic);
+        if (schematicSize > maxSize) {
+            LOGGER.debug("Not caching schematic of template " + template.getId() + ", it's bigger than the cache (" + schematicSize / 1024 + " KiB)");
+            return;
+        }
+
+        for (Iterator<Map.Entry<PocketTemplate, Entry>> iterator = entries.entrySet().iterator(); iterator.hasNext() && size + schematicSize > maxSize; ) {
+            Map.Entry<PocketTemplate, Entry> eldest = iterator.next();
+            size -= eldest.getValue().size;
+            evictions++;
+            iterator.remove();
+            LOGGER.debug("Evicted schematic of template " + eldest.getKey().getId() + " from the cache. " + this);
+        }
+
+        entries.put(template, new Entry(schematic, schematicSize));
+        size += schematicSize;
+    }
+
+    public void remove(PocketTemplate template) {
+        Entry entry = entries.remove(template);
+        if (entry != null) size -= entry.size;
+    }
+
+    public void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    public int getCount() {
+        return entries.size();
+    }
+
+    /**
+     * @return The estimated size of the cached schematics in bytes
+     */
+    public long getSize() {
+        return size;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    public double getHitRate() {
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+
+    private static long estimateSize(Schematic schematic) {
+        long size = schematic.blockData.getStorageSize();
+        size += schematic.palette.size() * 16L; // Palette entries are shared block states, only the references count
+        size += (long) (schematic.tileEntities.size() + schematic.entities.size()) * NBT_ENTRY_SIZE;
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "Schematic cache: " + entries.size() + " schematics, " + size / 1024 + " KiB, "
+               + hits + " hits, " + misses + " misses (" + Math.round(getHitRate() * 100) + "% hit rate), " + evictions + " evictions";
+    }
+
+    private static final class Entry {
+        final Schematic schematic;
+        final long size;
+
+        Entry(Schematic schematic, long size) {
+            this.schematic = schematic;
+            this.size = size;
+        }
+    }
+}
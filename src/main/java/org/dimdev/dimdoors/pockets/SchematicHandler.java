@@ -2,38 +2,46 @@ package org.dimdev.dimdoors.pockets;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.net.URLConnection;
 import java.nio.charset.StandardCharsets;
-import java.util.AbstractMap.SimpleEntry;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Objects;
 import java.util.Set;
 import java.util.stream.Collectors;
+import java.util.zip.CRC32;
 
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
 import org.apache.commons.io.IOUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.dimdev.dimcore.schematic.MappedSchematic;
 import org.dimdev.dimcore.schematic.Schematic;
+import org.dimdev.dimcore.schematic.SchematicHeader;
+import org.dimdev.dimcore.schematic.SchematicReader;
 import org.dimdev.dimdoors.DimensionalDoorsInitializer;
 import org.dimdev.dimdoors.ModConfig;
-import org.dimdev.dimdoors.util.math.MathUtil;
+import org.dimdev.dimdoors.util.math.DepthCurve;
+import org.dimdev.dimdoors.util.math.DepthSampler;
+import org.dimdev.dimdoors.util.math.WeightedSampler;
 
 import net.minecraft.nbt.CompoundTag;
 import net.minecraft.nbt.NbtIo;
@@ -53,7 +61,7 @@ public class SchematicHandler { // TODO: parts of this should be moved to the or
     public Schematic loadSchematicFromByteArray(byte[] schematicBytecode) {
         Schematic schematic = null;
         try {
-            schematic = Schematic.fromTag(NbtIo.readCompressed(new ByteArrayInputStream(schematicBytecode)));
+            schematic = SchematicReader.readCompressed(new ByteArrayInputStream(schematicBytecode));
         } catch (IOException ex) {
             //this would be EXTREMELY unlikely, since this should have been checked earlier.
             LOGGER.error("Schematic file for this dungeon could not be read from byte array.", ex);
@@ -63,20 +71,25 @@ public class SchematicHandler { // TODO: parts of this should be moved to the or
 
     private List<PocketTemplate> templates;
     private Map<String, Map<String, Integer>> nameMap; // group -> name -> index in templates
-    private List<Entry<PocketTemplate, Integer>> usageList = new ArrayList<>(); //template and nr of usages
-    private Map<PocketTemplate, Integer> usageMap = new HashMap<>(); //template -> index in usageList
+    private Map<String, Int2ObjectMap<DepthSampler<PocketTemplate>>> templateTables = new HashMap<>(); // group -> tableKey(maxSize, getLargest) -> weighted templates
+    private Map<String, DepthCurve> dungeonGroupWeights; // group -> weight of choosing the group for a dungeon
+    private DepthSampler<String> dungeonGroups;
+    private final SchematicCache schematicCache = new SchematicCache();
 
     public void loadSchematics() {
         long startTime = System.currentTimeMillis();
 
         templates = new ArrayList<>();
+        dungeonGroupWeights = new HashMap<>();
+        schematicCache.clear();
 
+        List<PocketTemplate> candidateTemplates = new ArrayList<>();
         String[] names = {"default_dungeon_nether", "default_dungeon_normal", "default_private", "default_public", "default_blank"}; // TODO: don't hardcode
         for (String name : names) {
             try {
                 URL resource = DimensionalDoorsInitializer.class.getResource("/data/dimdoors/pockets/json/" + name + ".json");
                 String jsonString = IOUtils.toString(resource, StandardCharsets.UTF_8);
-                templates.addAll(loadTemplatesFromJson(jsonString));
+                candidateTemplates.addAll(loadJson(jsonString));
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
@@ -93,118 +106,194 @@ public class SchematicHandler { // TODO: parts of this should be moved to the or
             schematicFolder.mkdirs();
         }
 
-        // Load config jsons and referenced schematics
+        // Load config jsons
         for (File file : jsonFolder.listFiles()) {
             if (file.isDirectory() || !file.getName().endsWith(".json")) continue;
             try {
                 String jsonString = IOUtils.toString(file.toURI(), StandardCharsets.UTF_8);
-                templates.addAll(loadTemplatesFromJson(jsonString));
+                candidateTemplates.addAll(loadJson(jsonString));
             } catch (IOException e) {
                 LOGGER.error("Error reading file " + file.toURI() + ". The following exception occured: ", e);
             }
         }
 
+        // Read the referenced schematics on the fork-join pool, the collected templates keep their order. Templates with
+        // the same schematic are loaded one after the other, so that its mapped file is only written once.
+        Map<String, List<PocketTemplate>> templatesBySchematic = candidateTemplates.stream()
+                .collect(Collectors.groupingBy(template -> template.getGroup() + "/" + template.getId(), LinkedHashMap::new, Collectors.toList()));
+        Set<PocketTemplate> loadedTemplates = templatesBySchematic.values().parallelStream()
+                .flatMap(sameSchematic -> sameSchematic.stream().filter(SchematicHandler::loadSchematic))
+                .collect(Collectors.toSet());
+        templates.addAll(candidateTemplates.stream()
+                .filter(loadedTemplates::contains)
+                .collect(Collectors.toList()));
+
         // Load saved schematics
         File saveFolder = new File(getFolder(), "/schematics/saved");
         if (saveFolder.exists()) {
-            for (File file : saveFolder.listFiles()) {
-                if (file.isDirectory() || !file.getName().endsWith(".schem")) continue;
-                try {
-                    byte[] schematicBytecode = IOUtils.toByteArray(new FileInputStream(file));
-                    Schematic.fromTag(NbtIo.readCompressed(new ByteArrayInputStream(schematicBytecode)));
-                    PocketTemplate template = new PocketTemplate(SAVED_POCKETS_GROUP_NAME, file.getName(), null, null, null, null, schematicBytecode, -1, 0);
-                    templates.add(template);
-                } catch (IOException e) {
-                    LOGGER.error("Error reading schematic " + file.getName() + ": " + e);
-                }
-            }
+            templates.addAll(Arrays.stream(saveFolder.listFiles())
+                    .parallel()
+                    .filter(file -> !file.isDirectory() && file.getName().endsWith(".schem"))
+                    .map(SchematicHandler::loadSavedTemplate)
+                    .filter(Objects::nonNull)
+                    .collect(Collectors.toList()));
         }
 
         constructNameMap();
+        buildTemplateTables();
 
         LOGGER.info("Loaded " + templates.size() + " templates in " + (System.currentTimeMillis() - startTime) + " ms.");
     }
 
-    private static List<PocketTemplate> loadTemplatesFromJson(String jsonString) {
-        String schematicJarDirectory = "/data/dimdoors/pockets/schematic/";
-        File schematicFolder = new File(getFolder(), "/schematics");
-
+    /**
+     * Reads a template group json.
+     *
+     * @return The group's templates that are valid for the current config, without their schematics
+     */
+    private List<PocketTemplate> loadJson(String jsonString) {
         JsonParser parser = new JsonParser();
         JsonElement jsonElement = parser.parse(jsonString);
         JsonObject jsonTemplate = jsonElement.getAsJsonObject();
 
-        //Generate and get templates (without a schematic) of all variations that are valid for the current "maxPocketSize"
-        List<PocketTemplate> candidateTemplates = getAllValidVariations(jsonTemplate);
-
-        String subDirectory = jsonTemplate.get("group").getAsString(); //get the subfolder in which the schematics are stored
-
-        List<PocketTemplate> validTemplates = new ArrayList<>();
-        for (PocketTemplate template : candidateTemplates) { //it's okay to "tap" this for-loop, even if validTemplates is empty.
-            String extendedTemplatelocation = subDirectory.equals("") ? template.getId() : subDirectory + "/" + template.getId() + ".schem"; //transform the filename accordingly
-
-            //Initialising the possible locations/formats for the schematic file
-            InputStream schematicStream = DimensionalDoorsInitializer.class.getResourceAsStream(schematicJarDirectory + extendedTemplatelocation);
-            File schematicFile = new File(schematicFolder, "/" + extendedTemplatelocation);
-
-            //determine which location to load the schematic file from (and what format)
-            DataInputStream schematicDataStream = null;
-            boolean streamOpened = false;
-            boolean isCustomFile = false;
-            boolean isValidFormat = true;
-            if (schematicStream != null) {
-                schematicDataStream = new DataInputStream(schematicStream);
-                streamOpened = true;
-            } else if (schematicFile.exists()) {
-                isCustomFile = true;
-                try {
-                    schematicDataStream = new DataInputStream(new FileInputStream(schematicFile));
-                    streamOpened = true;
-                } catch (FileNotFoundException ex) {
-                    LOGGER.error("Schematic file " + template.getId() + ".schem did not load correctly from config folder.", ex);
-                }
-            } else {
+        if (jsonTemplate.has("dungeonWeight")) {
+            dungeonGroupWeights.put(jsonTemplate.get("group").getAsString(), DepthCurve.fromJson(jsonTemplate.getAsJsonArray("dungeonWeight")));
+        }
+        return getAllValidVariations(jsonTemplate);
+    }
+
+    /**
+     * Reads the schematic of a template from the jar or the config folder into the template. Schematics from the
+     * config folder are checked against the size in their json, reading only their header. If mapSchematics is
+     * enabled, the template uses a memory-mapped copy of the decoded schematic instead of keeping the compressed one,
+     * and the schematic itself isn't read if the copy was written from a file with the same size and modification time.
+     * This doesn't touch the handler, so it can be called for several templates in parallel.
+     *
+     * @return Whether the schematic was found and valid
+     */
+    private static boolean loadSchematic(PocketTemplate template) {
+        String schematicJarDirectory = "/data/dimdoors/pockets/schematic/";
+        File schematicFolder = new File(getFolder(), "/schematics");
+        String subDirectory = template.getGroup(); //get the subfolder in which the schematics are stored
+        String extendedTemplatelocation = subDirectory.equals("") ? template.getId() : subDirectory + "/" + template.getId() + ".schem"; //transform the filename accordingly
+
+        //Initialising the possible locations/formats for the schematic file
+        URL schematicResource = DimensionalDoorsInitializer.class.getResource(schematicJarDirectory + extendedTemplatelocation);
+        File schematicFile = new File(schematicFolder, "/" + extendedTemplatelocation);
+
+        //determine which location to load the schematic file from, and its size and modification time if they're known
+        boolean isCustomFile = false;
+        long sourceSize;
+        long sourceStamp;
+        if (schematicResource == null) {
+            if (!schematicFile.exists()) {
                 LOGGER.error("Schematic \"" + template.getId() + ".schem\" was not found in the jar or config directory.");
+                return false;
+            }
+            isCustomFile = true;
+            sourceSize = schematicFile.length();
+            sourceStamp = schematicFile.lastModified();
+        } else {
+            try {
+                URLConnection connection = schematicResource.openConnection();
+                sourceSize = connection.getContentLengthLong();
+                sourceStamp = connection.getLastModified(); // Of the jar if the resource is in one
+            } catch (IOException ex) {
+                LOGGER.error("Schematic file " + template.getId() + ".schem did not load correctly from the jar.", ex);
+                return false;
             }
+        }
+        boolean stampKnown = sourceSize >= 0 && sourceStamp > 0;
 
-            byte[] schematicBytecode = null;
-            if (streamOpened) {
-                try {
-                    schematicBytecode = IOUtils.toByteArray(schematicDataStream);
-                    schematicDataStream.close();
-                } catch (IOException ex) {
-                    LOGGER.error("Schematic file for " + template.getId() + " could not be read into byte array.", ex);
-                } finally {
+        // A mapped file written from the same source is used without reading the source at all
+        File mappedFile = new File(getFolder(), "/schematics/mapped/" + extendedTemplatelocation + ".mapped");
+        MappedSchematic mappedSchematic = null;
+        if (ModConfig.POCKETS.mapSchematics && stampKnown) {
+            try {
+                mappedSchematic = MappedSchematic.open(mappedFile, sourceSize, sourceStamp);
+            } catch (IOException ex) {
+                LOGGER.warn("Mapped schematic file for " + template.getId() + " could not be opened.", ex);
+            }
+        }
+
+        byte[] schematicBytecode = null;
+        if (mappedSchematic == null) {
+            try (InputStream in = isCustomFile ? new FileInputStream(schematicFile) : schematicResource.openStream()) {
+                schematicBytecode = IOUtils.toByteArray(in);
+            } catch (IOException ex) {
+                LOGGER.error("Schematic file for " + template.getId() + " could not be read into byte array.", ex);
+                return false;
+            }
+
+            if (!stampKnown) { // Identify the source by its contents instead
+                CRC32 checksum = new CRC32();
+                checksum.update(schematicBytecode);
+                sourceSize = schematicBytecode.length;
+                sourceStamp = checksum.getValue();
+                if (ModConfig.POCKETS.mapSchematics) {
                     try {
-                        schematicDataStream.close();
+                        mappedSchematic = MappedSchematic.open(mappedFile, sourceSize, sourceStamp);
                     } catch (IOException ex) {
-                        LOGGER.error("Error occured while closing schematicDataStream.", ex);
+                        LOGGER.warn("Mapped schematic file for " + template.getId() + " could not be opened.", ex);
                     }
                 }
             }
+        }
 
-            if (isCustomFile) {
-                Schematic schematic = null;
+        if (isCustomFile) {
+            short sizeX;
+            short sizeZ;
+            if (mappedSchematic != null) {
+                sizeX = mappedSchematic.sizeX;
+                sizeZ = mappedSchematic.sizeZ;
+            } else {
                 try {
-                    schematic = Schematic.fromTag(NbtIo.readCompressed(new ByteArrayInputStream(schematicBytecode)));
+                    SchematicHeader header = SchematicHeader.readCompressed(new ByteArrayInputStream(schematicBytecode));
+                    sizeX = header.sizeX;
+                    sizeZ = header.sizeZ;
                 } catch (Exception ex) {
                     LOGGER.error("Schematic file for " + template.getId() + " could not be read as a valid schematic NBT file.", ex);
-                    isValidFormat = false;
+                    return false;
                 }
+            }
 
-                if (schematic != null
-                        && (schematic.sizeX > (template.getSize() + 1) * 16 || schematic.sizeZ > (template.getSize() + 1) * 16)) {
-                    LOGGER.warn("Schematic " + template.getId() + " was bigger than specified in its json file and therefore wasn't loaded");
-                    isValidFormat = false;
-                }
+            if (sizeX > (template.getSize() + 1) * 16 || sizeZ > (template.getSize() + 1) * 16) {
+                LOGGER.warn("Schematic " + template.getId() + " was bigger than specified in its json file and therefore wasn't loaded");
+                return false;
             }
+        }
 
-            if (streamOpened && isValidFormat) {
-                template.setSchematicBytecode(schematicBytecode);
-                validTemplates.add(template);
+        // Decode the schematic into a mapped file the first time it's loaded, after that it's never decompressed again
+        if (ModConfig.POCKETS.mapSchematics && mappedSchematic == null) {
+            try {
+                MappedSchematic.write(SchematicReader.readCompressed(new ByteArrayInputStream(schematicBytecode)), sourceSize, sourceStamp, mappedFile);
+                mappedSchematic = MappedSchematic.open(mappedFile, sourceSize, sourceStamp);
+            } catch (IOException | RuntimeException ex) {
+                LOGGER.warn("Schematic " + template.getId() + " could not be mapped, it will be kept compressed in memory.", ex);
             }
         }
 
-        return validTemplates;
+        if (mappedSchematic != null) {
+            template.setMappedSchematic(mappedSchematic);
+        } else {
+            template.setSchematicBytecode(schematicBytecode);
+        }
+        return true;
+    }
+
+    /**
+     * Reads a schematic saved with {@link #saveSchematicForEditing}, checking only its header.
+     *
+     * @return The template, or null if the schematic couldn't be read
+     */
+    private static PocketTemplate loadSavedTemplate(File file) {
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] schematicBytecode = IOUtils.toByteArray(in);
+            SchematicHeader.readCompressed(new ByteArrayInputStream(schematicBytecode));
+            return new PocketTemplate(SAVED_POCKETS_GROUP_NAME, file.getName(), null, null, null, schematicBytecode, -1, 0);
+        } catch (IOException e) {
+            LOGGER.error("Error reading schematic " + file.getName() + ": " + e);
+            return null;
+        }
     }
 
     private static List<PocketTemplate> getAllValidVariations(JsonObject jsonTemplate) {
@@ -224,7 +313,9 @@ public class SchematicHandler { // TODO: parts of this should be moved to the or
             String name = pocket.has("name") ? pocket.get("name").getAsString() : null;
             String author = pocket.has("author") ? pocket.get("author").getAsString() : null;
             int baseWeight = pocket.has("baseWeight") ? pocket.get("baseWeight").getAsInt() : 100;
-            pocketTemplates.add(new PocketTemplate(group, id, type, name, author, null, null, size, baseWeight));
+            PocketTemplate template = new PocketTemplate(group, id, type, name, author, null, size, baseWeight);
+            if (pocket.has("depthWeight")) template.setDepthWeight(DepthCurve.fromJson(pocket.getAsJsonArray("depthWeight")));
+            pocketTemplates.add(template);
         }
 
         return pocketTemplates.stream().sorted(Comparator.comparing(PocketTemplate::getId)).collect(Collectors.toList());
@@ -295,24 +386,109 @@ public class SchematicHandler { // TODO: parts of this should be moved to the or
      * @return A random template matching those criteria, or null if none were found
      */
     public PocketTemplate getRandomTemplate(String group, int depth, int maxSize, boolean getLargest) { // TODO: multiple groups
-        // TODO: cache this for faster calls:
-        Map<PocketTemplate, Float> weightedTemplates = new HashMap<>();
-        int largestSize = 0;
-         for (PocketTemplate template : templates) {
-            if (template.getGroup().equals(group) && (maxSize == -1 || template.getSize() <= maxSize)) {
-                if (getLargest && template.getSize() > largestSize) {
-                    weightedTemplates = new HashMap<>();
-                    largestSize = template.getSize();
+        WeightedSampler<PocketTemplate> table = getTemplateTable(group, maxSize, getLargest).getBucket(depth);
+        if (table.isEmpty()) {
+            LOGGER.warn("getRandomTemplate failed, no templates matching those criteria were found.");
+            return null; // TODO: switch to exception system
+        }
+
+        return table.sample();
+    }
+
+    /**
+     * Chooses which group a dungeon is generated from, using the "dungeonWeight" depth curves of the template groups.
+     *
+     * @return The group, or null if no group has a dungeon weight at this depth
+     */
+    public String getRandomDungeonGroup(int depth) {
+        return dungeonGroups.sample(depth);
+    }
+
+    /**
+     * Builds the template tables for the template choices made while generating pockets, so that they don't have to
+     * be built the first time a pocket is generated. Tables for other criteria are built when first requested.
+     */
+    private void buildTemplateTables() {
+        int lastDepth = 0;
+        for (DepthCurve curve : dungeonGroupWeights.values()) {
+            lastDepth = Math.max(lastDepth, curve.getLastDepth());
+        }
+        dungeonGroups = DepthSampler.build(dungeonGroupWeights.keySet(), (group, depth) -> dungeonGroupWeights.get(group).getValue(depth), lastDepth, ModConfig.POCKETS.depthBucketSize);
+
+        templateTables = new HashMap<>();
+        for (String group : nameMap.keySet()) {
+            getTemplateTable(group, ModConfig.POCKETS.maxPocketSize, false);
+        }
+        getTemplateTable("private", ModConfig.POCKETS.privatePocketSize, true);
+        getTemplateTable("public", ModConfig.POCKETS.publicPocketSize, true);
+    }
+
+    private DepthSampler<PocketTemplate> getTemplateTable(String group, int maxSize, boolean getLargest) {
+        Int2ObjectMap<DepthSampler<PocketTemplate>> groupTables = templateTables.computeIfAbsent(group, g -> new Int2ObjectOpenHashMap<>());
+        int key = maxSize << 1 | (getLargest ? 1 : 0);
+        DepthSampler<PocketTemplate> table = groupTables.get(key);
+        if (table == null) {
+            table = buildTemplateTable(group, maxSize, getLargest);
+            groupTables.put(key, table);
+        }
+        return table;
+    }
+
+    private DepthSampler<PocketTemplate> buildTemplateTable(String group, int maxSize, boolean getLargest) {
+        int largestSize = -1;
+        if (getLargest) {
+            for (PocketTemplate template : templates) {
+                if (template.getGroup().equals(group) && (maxSize == -1 || template.getSize() <= maxSize)) {
+                    largestSize = Math.max(largestSize, template.getSize());
                 }
-                weightedTemplates.put(template, template.getWeight(depth));
             }
         }
-        if (weightedTemplates.isEmpty()) {
-            LOGGER.warn("getRandomTemplate failed, no templates matching those criteria were found.");
-            return null; // TODO: switch to exception system
+
+        List<PocketTemplate> matchingTemplates = new ArrayList<>();
+        int lastDepth = 0;
+        for (PocketTemplate template : templates) {
+            if (template.getGroup().equals(group) && (maxSize == -1 || template.getSize() <= maxSize)
+                    && (!getLargest || template.getSize() == largestSize)) {
+                matchingTemplates.add(template);
+                lastDepth = Math.max(lastDepth, template.getLastWeightDepth());
+            }
         }
+        return DepthSampler.build(matchingTemplates, PocketTemplate::getWeight, lastDepth, ModConfig.POCKETS.depthBucketSize);
+    }
 
-        return MathUtil.weightedRandom(weightedTemplates);
+    /**
+     * Gets the decoded schematic of a template, with its placeholders replaced. The schematic is decoded if it isn't
+     * cached and cached afterwards.
+     *
+     * @return The schematic, or null if it couldn't be decoded
+     */
+    public Schematic getSchematic(PocketTemplate template) {
+        Schematic schematic = schematicCache.get(template);
+        if (schematic == null) {
+            LOGGER.debug("Schematic of template " + template.getId() + " isn't cached, decoding it.");
+            schematic = template.decodeSchematic();
+            if (schematic != null) cacheSchematic(template, schematic);
+        }
+        return schematic;
+    }
+
+    /**
+     * @return The cached schematic of a template, or null if it isn't cached
+     */
+    public Schematic getCachedSchematic(PocketTemplate template) {
+        return schematicCache.get(template);
+    }
+
+    /**
+     * Replaces the placeholders of a freshly decoded schematic and caches it.
+     */
+    public void cacheSchematic(PocketTemplate template, Schematic schematic) {
+        PocketTemplate.replacePlaceholders(schematic);
+        schematicCache.put(template, schematic);
+    }
+
+    public SchematicCache getSchematicCache() {
+        return schematicCache;
     }
 
     public PocketTemplate getPersonalPocketTemplate() {
@@ -352,7 +528,7 @@ public class SchematicHandler { // TODO: parts of this should be moved to the or
 
         Map<String, Integer> savedDungeons = nameMap.get(SAVED_POCKETS_GROUP_NAME);
         if (savedDungeons.containsKey(id)) {
-            templates.remove((int) savedDungeons.remove(id));
+            schematicCache.remove(templates.remove((int) savedDungeons.remove(id)));
         }
 
         //create byte array
@@ -367,131 +543,14 @@ public class SchematicHandler { // TODO: parts of this should be moved to the or
         }
 
         if (schematicBytecode != null) {
-            templates.add(new PocketTemplate(SAVED_POCKETS_GROUP_NAME, id, null, null, null, schematic, schematicBytecode, -1, 0));
+            PocketTemplate template = new PocketTemplate(SAVED_POCKETS_GROUP_NAME, id, null, null, null, schematicBytecode, -1, 0);
+            schematicCache.put(template, schematic);
+            templates.add(template);
             nameMap.get(SAVED_POCKETS_GROUP_NAME).put(id, templates.size() - 1);
         }
-    }
-
-    private int getUsage(PocketTemplate template) {
-        if (!usageMap.containsKey(template)) return -1;
-        int index = usageMap.get(template);
-        if (usageList.size() <= index) return -1;
-        PocketTemplate listTemplate = usageList.get(index).getKey();
-        if (listTemplate == template) {
-            int usage = usageList.get(index).getValue();
-            return usage;
-        } else {//should never happen, but you never really know.
-            LOGGER.warn("Pocket Template usage list is desynched from the usage map, re-sorting and synching now.");
-            reSortUsages();
-            return getUsage(template);
-        }
-    }
-
-    public boolean isUsedOftenEnough(PocketTemplate template) {
-        int maxNrOfCachedSchematics = ModConfig.POCKETS.cachedSchematics;
-        int usageRank = usageMap.get(template);
-        return usageRank < maxNrOfCachedSchematics;
-    }
-
-    public void incrementUsage(PocketTemplate template) {
-        int startIndex;
-        int newUsage;
-        if (!usageMap.containsKey(template)) {
-            usageList.add(new SimpleEntry<>(null, 0)); //add a dummy entry at the end
-            startIndex = usageList.size() - 1;
-            newUsage = 1;
-        } else {
-            startIndex = usageMap.get(template);
-            newUsage = usageList.get(startIndex).getValue() + 1;
-        }
-
-        int insertionIndex = findFirstEqualOrLessUsage(newUsage, 0, startIndex);
-        //shift all entries inbetween the insertionIndex and the currentIndex to the right
-        PocketTemplate currentTemplate;
-        for (int i = startIndex; i > insertionIndex; i--) {
-            usageList.set(i, usageList.get(i - 1));
-            currentTemplate = usageList.get(i).getKey();
-            usageMap.put(currentTemplate, i);
-        }
-        //insert the incremented entry at the correct place
-        usageList.set(insertionIndex, new SimpleEntry(template, newUsage));
-        usageMap.put(template, insertionIndex);
-
-        if (insertionIndex < ModConfig.POCKETS.cachedSchematics) { //if the schematic of this template is supposed to get cached
-            if (usageList.size() > ModConfig.POCKETS.cachedSchematics) { //if there are more used templates than there are schematics allowed to be cached
-                usageList.get(ModConfig.POCKETS.cachedSchematics).getKey().setSchematic(null); //make sure that the number of cached schematics is limited
-            }
-        }
-    }
-
-    //uses binary search
-    private int findFirstEqualOrLessUsage(int usage, int indexMin, int indexMax) {
 
-        if (usageList.get(indexMin).getValue() <= usage) {
-            return indexMin;
-        }
-        int halfwayIndex = (indexMin + indexMax) / 2;
-        if (usageList.get(halfwayIndex).getValue() > usage) {
-            return findFirstEqualOrLessUsage(usage, halfwayIndex + 1, indexMax);
-        } else {
-            return findFirstEqualOrLessUsage(usage, indexMin, halfwayIndex);
-        }
-    }
-
-    private void reSortUsages() {
-        //sort the usageList
-        usageList = mergeSortPairArrayByPairValue(usageList);
-        //make sure that everything in the usageList is actually in the usageMap
-        for (Entry<PocketTemplate, Integer> pair : usageList) {
-            usageMap.put(pair.getKey(), pair.getValue());
-        }
-
-        //make sure that everything in the usageMap is actually in the usageList
-        for (Entry<PocketTemplate, Integer> entry : usageMap.entrySet()) {
-            PocketTemplate template = entry.getKey();
-            int index = entry.getValue();
-            PocketTemplate template2 = usageList.get(index).getKey();
-            if (index >= usageList.size() || template != template2) {
-                entry.setValue(usageList.size());
-                usageList.add(new SimpleEntry(template, 1));
-            }
-        }
-    }
-
-    //TODO make these a more common implementation for which PocketTemplate could be anything.
-    private List<Entry<PocketTemplate, Integer>> mergeSortPairArrayByPairValue(List<Entry<PocketTemplate, Integer>> input) {
-        if (input.size() < 2) {
-            return input;
-        } else {
-            List<Entry<PocketTemplate, Integer>> a = mergeSortPairArrayByPairValue(input.subList(0, input.size() / 2));
-            List<Entry<PocketTemplate, Integer>> b = mergeSortPairArrayByPairValue(input.subList(input.size() / 2, input.size()));
-            return mergePairArraysByPairValue(a, b);
-        }
-    }
-
-    private List<Entry<PocketTemplate, Integer>> mergePairArraysByPairValue(List<Entry<PocketTemplate, Integer>> a, List<Entry<PocketTemplate, Integer>> b) {
-        List<Entry<PocketTemplate, Integer>> output = new ArrayList<>();
-        int aPointer = 0;
-        int bPointer = 0;
-        while (aPointer < a.size() || bPointer < b.size()) {
-            if (aPointer >= a.size()) {
-                output.addAll(b.subList(bPointer, b.size()));
-                break;
-            }
-            if (bPointer >= b.size()) {
-                output.addAll(a.subList(aPointer, a.size()));
-                break;
-            }
-            int aValue = a.get(aPointer).getValue();
-            int bValue = b.get(bPointer).getValue();
-            if (aValue >= bValue) {
-                output.add(a.get(aPointer));
-                aPointer++;
-            } else {
-                output.add(b.get(bPointer));
-                bPointer++;
-            }
-        }
-        return output;
+        // Removing a template shifts the indices of the ones after it, so rebuild the name map as well
+        constructNameMap();
+        buildTemplateTables();
     }
 }
@@ -30,6 +30,8 @@ public abstract class RegistryVertex {
     @Saved
     public UUID id = UUID.randomUUID(); // Used to create pointers to registry vertices. Should not be used for anything other than saving.
 
+    int graphId = -1; // Not saved, the id of this vertex in the RiftGraph
+
     public void sourceGone(RegistryVertex source) {
     }
 
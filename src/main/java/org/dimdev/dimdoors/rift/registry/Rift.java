@@ -7,8 +7,9 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.dimdev.annotatednbt.AnnotatedNbt;
 import org.dimdev.annotatednbt.Saved;
-import org.dimdev.dimdoors.block.entity.RiftBlockEntity;
 import org.dimdev.dimdoors.util.Location;
+import org.dimdev.dimdoors.world.pocket.Pocket;
+import org.dimdev.dimdoors.world.pocket.VirtualLocation;
 
 import net.minecraft.nbt.CompoundTag;
 
@@ -35,6 +36,9 @@ public class Rift extends RegistryVertex {
     @Saved
     public LinkProperties properties;
 
+    VirtualLocation virtualLocation; // Not saved, cached by the RiftRegistry when the rift is registered
+    Pocket pocket; // Not saved, the pocket containing this rift, used to invalidate virtualLocation
+
     public Rift(Location location) {
         this.location = location;
     }
@@ -48,34 +52,40 @@ public class Rift extends RegistryVertex {
     public Rift() {
     }
 
+    public VirtualLocation getVirtualLocation() {
+        if (virtualLocation == null) virtualLocation = VirtualLocation.fromLocation(location);
+        return virtualLocation;
+    }
+
     @Override
     public void sourceGone(RegistryVertex source) {
         super.sourceGone(source);
-        RiftBlockEntity riftTileEntity = (RiftBlockEntity) location.getBlockEntity();
         if (source instanceof Rift) {
-            riftTileEntity.handleSourceGone(((Rift) source).location);
+            RiftRegistry.instance().queueColorUpdate(this); // All handleSourceGone does
         }
     }
 
     @Override
     public void targetGone(RegistryVertex target) {
         super.targetGone(target);
-        RiftBlockEntity riftTileEntity = (RiftBlockEntity) location.getBlockEntity();
         if (target instanceof Rift) {
-            riftTileEntity.handleTargetGone(((Rift) target).location);
+            RiftRegistry.instance().notifyTargetGone(this, ((Rift) target).location);
+        } else {
+            RiftRegistry.instance().queueColorUpdate(this);
         }
-        riftTileEntity.updateColor();
     }
 
     public void targetChanged(RegistryVertex target) {
         LOGGER.debug("Rift " + this + " notified of target " + target + " having changed. Updating color.");
-        ((RiftBlockEntity) location.getBlockEntity()).updateColor();
+        RiftRegistry.instance().queueColorUpdate(this);
     }
 
     public void markDirty() {
-        ((RiftBlockEntity) location.getBlockEntity()).updateColor();
-        for (Location location : RiftRegistry.instance().getSources(location)) {
-            RiftRegistry.instance().getRift(location).targetChanged(this);
+        RiftRegistry registry = RiftRegistry.instance();
+        registry.queueColorUpdate(this);
+        for (int i = 0; i < registry.getSourceCount(this); i++) {
+            RegistryVertex source = registry.getSource(this, i);
+            if (source instanceof Rift) ((Rift) source).targetChanged(this);
         }
     }
 
@@ -0,0 +1,175 @@
+package org.dimdev.dimdoors.rift.registry;
+
+import java.util.Arrays;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+
+/**
+ * A directed graph of registry vertices without parallel edges. Vertices are numbered with small int ids (stored in
+ * {@link RegistryVertex#graphId}) and edges are kept as per-vertex arrays of target and source ids, so linking and
+ * iterating doesn't allocate edge objects, sets or streams.
+ * <p>
+ * Targets and sources are iterated by index, for example
+ * {@code for (int i = 0; i < graph.getTargetCount(v); i++) graph.getTarget(v, i)}. Removing an edge moves the last
+ * edge of the vertex into its slot, so the graph must not be changed while iterating.
+ */
+public class RiftGraph {
+    private static final int[] NO_EDGES = new int[0];
+
+    private RegistryVertex[] vertices = new RegistryVertex[64];
+    private int[][] targets = new int[64][];
+    private int[] targetCounts = new int[64];
+    private int[][] sources = new int[64][];
+    private int[] sourceCounts = new int[64];
+    private final IntArrayList freeIds = new IntArrayList();
+    private int nextId = 0;
+    private int vertexCount = 0;
+
+    public boolean containsVertex(RegistryVertex vertex) {
+        int id = vertex.graphId;
+        return id >= 0 && id < nextId && vertices[id] == vertex;
+    }
+
+    public boolean addVertex(RegistryVertex vertex) {
+        if (containsVertex(vertex)) return false;
+
+        int id;
+        if (!freeIds.isEmpty()) {
+            id = freeIds.popInt();
+        } else {
+            id = nextId++;
+            if (id == vertices.length) grow();
+        }
+        vertices[id] = vertex;
+        targets[id] = NO_EDGES;
+        sources[id] = NO_EDGES;
+        targetCounts[id] = 0;
+        sourceCounts[id] = 0;
+        vertex.graphId = id;
+        vertexCount++;
+        return true;
+    }
+
+    /**
+     * Removes a vertex and all edges to and from it.
+     */
+    public boolean removeVertex(RegistryVertex vertex) {
+        if (!containsVertex(vertex)) return false;
+        int id = vertex.graphId;
+
+        for (int i = 0; i < targetCounts[id]; i++) {
+            removeId(sources, sourceCounts, targets[id][i], id);
+        }
+        for (int i = 0; i < sourceCounts[id]; i++) {
+            removeId(targets, targetCounts, sources[id][i], id);
+        }
+
+        vertices[id] = null;
+        targets[id] = NO_EDGES;
+        sources[id] = NO_EDGES;
+        targetCounts[id] = 0;
+        sourceCounts[id] = 0;
+        vertex.graphId = -1;
+        freeIds.add(id);
+        vertexCount--;
+        return true;
+    }
+
+    /**
+     * Adds a vertex in place of another, moving all of the old vertex's edges to it.
+     */
+    public void replaceVertex(RegistryVertex vertex, RegistryVertex replacement) {
+        if (!containsVertex(vertex)) throw new IllegalArgumentException("Vertex " + vertex + " is not in the graph");
+        if (containsVertex(replacement)) throw new IllegalArgumentException("Vertex " + replacement + " is already in the graph");
+        int id = vertex.graphId;
+        vertices[id] = replacement;
+        replacement.graphId = id;
+        vertex.graphId = -1;
+    }
+
+    public boolean containsEdge(RegistryVertex from, RegistryVertex to) {
+        if (!containsVertex(from) || !containsVertex(to)) return false;
+        return indexOf(targets[from.graphId], targetCounts[from.graphId], to.graphId) >= 0;
+    }
+
+    public boolean addEdge(RegistryVertex from, RegistryVertex to) {
+        if (!containsVertex(from)) throw new IllegalArgumentException("Vertex " + from + " is not in the graph");
+        if (!containsVertex(to)) throw new IllegalArgumentException("Vertex " + to + " is not in the graph");
+        if (containsEdge(from, to)) return false;
+
+        addId(targets, targetCounts, from.graphId, to.graphId);
+        addId(sources, sourceCounts, to.graphId, from.graphId);
+        return true;
+    }
+
+    public boolean removeEdge(RegistryVertex from, RegistryVertex to) {
+        if (!containsVertex(from) || !containsVertex(to)) return false;
+        if (!removeId(targets, targetCounts, from.graphId, to.graphId)) return false;
+        removeId(sources, sourceCounts, to.graphId, from.graphId);
+        return true;
+    }
+
+    public int getTargetCount(RegistryVertex vertex) {
+        return containsVertex(vertex) ? targetCounts[vertex.graphId] : 0;
+    }
+
+    public RegistryVertex getTarget(RegistryVertex vertex, int index) {
+        return vertices[targets[vertex.graphId][index]];
+    }
+
+    public int getSourceCount(RegistryVertex vertex) {
+        return containsVertex(vertex) ? sourceCounts[vertex.graphId] : 0;
+    }
+
+    public RegistryVertex getSource(RegistryVertex vertex, int index) {
+        return vertices[sources[vertex.graphId][index]];
+    }
+
+    /**
+     * @return The first target of a vertex, or null if the vertex is null or has no targets
+     */
+    public RegistryVertex followPointer(RegistryVertex pointer) {
+        return pointer != null && getTargetCount(pointer) > 0 ? getTarget(pointer, 0) : null;
+    }
+
+    public int vertexCount() {
+        return vertexCount;
+    }
+
+    private void grow() {
+        int size = vertices.length * 2;
+        vertices = Arrays.copyOf(vertices, size);
+        targets = Arrays.copyOf(targets, size);
+        targetCounts = Arrays.copyOf(targetCounts, size);
+        sources = Arrays.copyOf(sources, size);
+        sourceCounts = Arrays.copyOf(sourceCounts, size);
+    }
+
+    private static void addId(int[][] lists, int[] counts, int owner, int id) {
+        int[] list = lists[owner];
+        int count = counts[owner];
+        if (count == list.length) {
+            list = Arrays.copyOf(list, Math.max(2, count * 2));
+            lists[owner] = list;
+        }
+        list[count] = id;
+        counts[owner] = count + 1;
+    }
+
+    private static boolean removeId(int[][] lists, int[] counts, int owner, int id) {
+        int[] list = lists[owner];
+        int count = counts[owner];
+        int index = indexOf(list, count, id);
+        if (index < 0) return false;
+        list[index] = list[count - 1];
+        counts[owner] = count - 1;
+        return true;
+    }
+
+    private static int indexOf(int[] list, int count, int id) {
+        for (int i = 0; i < count; i++) {
+            if (list[i] == id) return i;
+        }
+        return -1;
+    }
+}
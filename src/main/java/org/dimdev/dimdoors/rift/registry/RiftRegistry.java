@@ -1,29 +1,44 @@
 package org.dimdev.dimdoors.rift.registry;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
-import java.util.stream.Collectors;
 
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.dimdev.dimdoors.util.GraphUtils;
+import org.dimdev.dimdoors.block.entity.RiftBlockEntity;
 import org.dimdev.dimdoors.util.Location;
 import org.dimdev.dimdoors.util.NbtUtil;
+import org.dimdev.dimdoors.world.ModDimensions;
 import org.dimdev.dimdoors.world.pocket.Pocket;
 import org.dimdev.dimdoors.world.pocket.PocketRegistry;
 import org.dimdev.dimdoors.world.pocket.PrivatePocketData;
-import org.jgrapht.graph.DefaultDirectedGraph;
-import org.jgrapht.graph.DefaultEdge;
+import org.dimdev.dimdoors.world.pocket.VirtualLocation;
 
+import net.minecraft.block.entity.BlockEntity;
 import net.minecraft.nbt.CompoundTag;
 import net.minecraft.nbt.ListTag;
 import net.minecraft.nbt.Tag;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.Identifier;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.util.registry.Registry;
+import net.minecraft.util.registry.RegistryKey;
 import net.minecraft.world.PersistentState;
 import net.minecraft.world.World;
+import net.minecraft.world.chunk.WorldChunk;
 
 import static net.minecraft.world.World.OVERWORLD;
 import static org.dimdev.dimdoors.DimensionalDoorsInitializer.*;
@@ -32,10 +47,21 @@ public class RiftRegistry extends PersistentState {
     private static final Logger LOGGER = LogManager.getLogger();
     private static final String DATA_NAME = "rifts";
 
-    protected DefaultDirectedGraph<RegistryVertex, DefaultEdge> graph = new DefaultDirectedGraph<>(DefaultEdge.class);
-    protected Map<Location, Rift> locationMap = new HashMap<>();
+    protected RiftGraph graph = new RiftGraph();
+    protected Map<RegistryKey<World>, Long2ObjectMap<Rift>> locationMap = new HashMap<>(); // Dimension -> BlockPos.asLong() -> rift
     protected Map<Pocket, PocketEntrancePointer> pocketEntranceMap = new HashMap<>();
     protected Map<UUID, RegistryVertex> uuidMap = new HashMap<>();
+    protected Map<Pocket, Set<Rift>> pocketRifts = new HashMap<>(); // Not saved, rifts whose cached virtual location comes from the pocket
+    protected RiftSpatialIndex spatialIndex = new RiftSpatialIndex(); // Not saved, rebuilt from the rifts on load
+    protected Set<Rift> pendingColorUpdates = new LinkedHashSet<>(); // Not saved, flushed at the end of every tick
+    protected Map<RegistryKey<World>, Long2ObjectMap<Map<Location, Set<Location>>>> deferredNotifications = new HashMap<>(); // Dimension -> chunk -> rift -> removed targets
+    protected Map<Location, Set<Location>> loadedNotifications = new LinkedHashMap<>(); // Deferred notifications whose chunk was loaded, applied at the end of the tick
+    protected RiftShardStorage shardStorage = new RiftShardStorage(); // Rifts and their outgoing links are saved in region shards
+
+    // Links whose target is in a dimension that hasn't been loaded yet
+    protected Map<UUID, Set<RegistryVertex>> pendingSources = new HashMap<>(); // Target UUID -> sources waiting for it
+    protected Map<RegistryVertex, Map<UUID, RegistryKey<World>>> pendingTargets = new HashMap<>(); // Source -> target UUID -> target dimension
+    protected Map<UUID, BlockPos> pendingTargetPositions = new HashMap<>(); // Target UUID -> position, if it was saved
 
     protected Map<UUID, PlayerRiftPointer> lastPrivatePocketEntrances = new HashMap<>(); // Player UUID -> last rift used to exit pocket
     protected Map<UUID, PlayerRiftPointer> lastPrivatePocketExits = new HashMap<>(); // Player UUID -> last rift used to enter pocket
@@ -53,89 +79,304 @@ public class RiftRegistry extends PersistentState {
 
     @Override
     public void fromTag(CompoundTag nbt) {
-        // Read rifts in this dimension
-
-        ListTag riftsNBT = (ListTag) nbt.get("rifts");
-        for (Tag riftNBT : riftsNBT) {
-            Rift rift = NbtUtil.deserialize(riftNBT, Rift.CODEC);
-            graph.addVertex(rift);
-            uuidMap.put(rift.id, rift);
-            locationMap.put(rift.location, rift);
+        // Rifts used to be saved in this tag rather than in shards, read them all now and move them to shards on the next save
+        boolean legacy = nbt.contains("rifts");
+        if (legacy) {
+            LOGGER.info("Converting rift registry to region shards");
+            for (ServerWorld world : getServer().getWorlds()) {
+                shardStorage.setLoaded(world.getRegistryKey());
+            }
+            for (Tag riftNBT : nbt.getList("rifts", 10)) {
+                loadRift(NbtUtil.deserialize(riftNBT, Rift.CODEC));
+            }
         }
 
         ListTag pocketsNBT = (ListTag) nbt.get("pockets");
         for (Tag pocketNBT : pocketsNBT) {
             PocketEntrancePointer pocket = NbtUtil.deserialize(pocketNBT, PocketEntrancePointer.CODEC);
+            pocket.world = pocket.pocketDim;
             graph.addVertex(pocket);
             uuidMap.put(pocket.id, pocket);
-            pocketEntranceMap.put(PocketRegistry.instance(pocket.world).getPocket(pocket.pocketId), pocket);
+            pocketEntranceMap.put(PocketRegistry.instance(pocket.pocketDim).getPocket(pocket.pocketId), pocket);
         }
 
-        // Read the connections between links that have a source or destination in this dimension
-        ListTag linksNBT = (ListTag) nbt.get("links");
-        for (Tag linkNBT : linksNBT) {
-            RegistryVertex from = uuidMap.get(((CompoundTag) linkNBT).getUuid("from"));
-            RegistryVertex to = uuidMap.get(((CompoundTag) linkNBT).getUuid("to"));
-            if (from != null && to != null) {
-                graph.addEdge(from, to);
-                // We need a system for detecting links that are incomplete after processing them in the other subregistry too
-            }
-        }
+        // Read the links of the pocket entrance pointers (and all links in the legacy format)
+        readLinks(nbt.getList("links", 10));
 
         lastPrivatePocketEntrances = readPlayerRiftPointers((ListTag) nbt.get("lastPrivatePocketEntrances"));
         lastPrivatePocketExits = readPlayerRiftPointers((ListTag) nbt.get("lastPrivatePocketExits"));
         overworldRifts = readPlayerRiftPointers((ListTag) nbt.get("overworldRifts"));
+
+        // Chunks may have been loaded before the registry was, so try to apply these at the end of the first tick
+        if (nbt.contains("deferredNotifications")) {
+            for (Tag notificationNBT : nbt.getList("deferredNotifications", 10)) {
+                CompoundTag notification = (CompoundTag) notificationNBT;
+                Set<Location> targets = new HashSet<>();
+                for (Tag targetNBT : notification.getList("goneTargets", 10)) {
+                    targets.add(NbtUtil.deserialize(targetNBT, Location.CODEC));
+                }
+                loadedNotifications.put(NbtUtil.deserialize(notification.get("rift"), Location.CODEC), targets);
+            }
+        }
+
+        if (legacy) {
+            shardStorage.markAllDirty();
+            markDirty();
+        }
     }
 
     @Override
     public CompoundTag toTag(CompoundTag tag) {
-        if (this == null) {
-        }
-        // Write rifts in this dimension
-        ListTag riftsNBT = new ListTag();
-        ListTag pocketsNBT = new ListTag();
-        for (RegistryVertex vertex : graph.vertexSet()) {
-            CompoundTag vertexNBT = (CompoundTag) NbtUtil.serialize(vertex, RegistryVertex.CODEC);
-            if (vertex instanceof Rift) {
-                riftsNBT.add(vertexNBT);
-            } else if (vertex instanceof PocketEntrancePointer) {
-                pocketsNBT.add(vertexNBT);
-            } else if (!(vertex instanceof PlayerRiftPointer)) {
-                throw new RuntimeException("Unsupported registry vertex type " + vertex.getClass().getName());
-            }
-        }
-        tag.put("rifts", riftsNBT);
-        tag.put("pockets", pocketsNBT);
+        // Rifts and their links are written to their shards, which are only rewritten if they changed since the last save
+        shardStorage.writeDirtyShards(this::writeShard);
 
-        // Write the connections between links that have a source or destination in this dimension
+        ListTag pocketsNBT = new ListTag();
         ListTag linksNBT = new ListTag();
-        for (DefaultEdge edge : graph.edgeSet()) {
-            RegistryVertex from = graph.getEdgeSource(edge);
-            RegistryVertex to = graph.getEdgeTarget(edge);
-            CompoundTag linkNBT = new CompoundTag();
-            linkNBT.putUuid("from", from.id);
-            linkNBT.putUuid("to", to.id);
-            linksNBT.add(linkNBT);
+        for (PocketEntrancePointer pointer : pocketEntranceMap.values()) {
+            pocketsNBT.add(NbtUtil.serialize(pointer, PocketEntrancePointer.CODEC));
+            writeLinks(pointer, linksNBT);
         }
+        tag.put("pockets", pocketsNBT);
         tag.put("links", linksNBT);
 
-        // Subregistries are written automatically when the worlds are saved.
         tag.put("lastPrivatePocketEntrances", writePlayerRiftPointers(lastPrivatePocketEntrances));
         tag.put("lastPrivatePocketExits", writePlayerRiftPointers(lastPrivatePocketExits));
         tag.put("overworldRifts", writePlayerRiftPointers(overworldRifts));
+
+        ListTag notificationsNBT = new ListTag();
+        for (Long2ObjectMap<Map<Location, Set<Location>>> worldNotifications : deferredNotifications.values()) {
+            for (Map<Location, Set<Location>> chunkNotifications : worldNotifications.values()) {
+                chunkNotifications.forEach((rift, targets) -> notificationsNBT.add(writeNotification(rift, targets)));
+            }
+        }
+        loadedNotifications.forEach((rift, targets) -> notificationsNBT.add(writeNotification(rift, targets)));
+        tag.put("deferredNotifications", notificationsNBT);
         return tag;
     }
 
+    private static CompoundTag writeNotification(Location rift, Set<Location> goneTargets) {
+        CompoundTag notificationNBT = new CompoundTag();
+        notificationNBT.put("rift", NbtUtil.serialize(rift, Location.CODEC));
+        ListTag targetsNBT = new ListTag();
+        for (Location target : goneTargets) {
+            targetsNBT.add(NbtUtil.serialize(target, Location.CODEC));
+        }
+        notificationNBT.put("goneTargets", targetsNBT);
+        return notificationNBT;
+    }
+
+    @Override
+    public boolean isDirty() {
+        return super.isDirty() || shardStorage.hasDirtyShards();
+    }
+
+    private CompoundTag writeShard(Set<Rift> rifts) {
+        CompoundTag tag = new CompoundTag();
+        ListTag riftsNBT = new ListTag();
+        ListTag placeholdersNBT = new ListTag();
+        ListTag linksNBT = new ListTag();
+        for (Rift rift : rifts) {
+            if (rift instanceof RiftPlaceholder) {
+                CompoundTag placeholderNBT = new CompoundTag();
+                placeholderNBT.putUuid("id", rift.id);
+                placeholderNBT.put("location", NbtUtil.serialize(rift.location, Location.CODEC));
+                placeholdersNBT.add(placeholderNBT);
+            } else {
+                riftsNBT.add(NbtUtil.serialize(rift, Rift.CODEC));
+            }
+            writeLinks(rift, linksNBT);
+        }
+        tag.put("rifts", riftsNBT);
+        tag.put("placeholders", placeholdersNBT);
+        tag.put("links", linksNBT);
+        return tag;
+    }
+
+    private void writeLinks(RegistryVertex from, ListTag linksNBT) {
+        for (int i = 0; i < graph.getTargetCount(from); i++) {
+            Rift to = (Rift) graph.getTarget(from, i);
+            linksNBT.add(writeLink(from.id, to.id, to.location));
+        }
+        Map<UUID, RegistryKey<World>> pending = pendingTargets.get(from);
+        if (pending != null) {
+            for (Map.Entry<UUID, RegistryKey<World>> entry : pending.entrySet()) {
+                linksNBT.add(writeLink(from.id, entry.getKey(), entry.getValue(), pendingTargetPositions.get(entry.getKey())));
+            }
+        }
+    }
+
+    private static CompoundTag writeLink(UUID from, UUID to, Location toLocation) {
+        return writeLink(from, to, toLocation.world, toLocation.pos);
+    }
+
+    /**
+     * @param toPos The position of the target, used to notify the source if the target was removed while the source's
+     *              dimension wasn't loaded. Null if it isn't known.
+     */
+    private static CompoundTag writeLink(UUID from, UUID to, RegistryKey<World> toWorld, BlockPos toPos) {
+        CompoundTag linkNBT = new CompoundTag();
+        linkNBT.putUuid("from", from);
+        linkNBT.putUuid("to", to);
+        linkNBT.putString("world", toWorld.getValue().toString());
+        if (toPos != null) linkNBT.putLong("pos", toPos.asLong());
+        return linkNBT;
+    }
+
+    /**
+     * @return The links whose target was removed, as source -> locations of the removed targets
+     */
+    private Map<Rift, Set<Location>> readLinks(ListTag linksNBT) {
+        Map<Rift, Set<Location>> goneTargets = new HashMap<>();
+        for (Tag linkNBT : linksNBT) {
+            CompoundTag link = (CompoundTag) linkNBT;
+            RegistryVertex from = uuidMap.get(link.getUuid("from"));
+            RegistryKey<World> toWorld = link.contains("world") ? RegistryKey.of(Registry.DIMENSION, new Identifier(link.getString("world"))) : null;
+            BlockPos toPos = link.contains("pos") ? BlockPos.fromLong(link.getLong("pos")) : null;
+            if (from != null && !linkOrDefer(from, link.getUuid("to"), toWorld, toPos) && from instanceof Rift && toPos != null) {
+                goneTargets.computeIfAbsent((Rift) from, rift -> new HashSet<>()).add(new Location(toWorld, toPos));
+            }
+        }
+        return goneTargets;
+    }
+
+    /**
+     * Adds a link to a vertex, or remembers it until the target's dimension is loaded.
+     *
+     * @param toPos The position of the target, or null if it isn't known
+     * @return false if the target is gone
+     */
+    private boolean linkOrDefer(RegistryVertex from, UUID to, RegistryKey<World> toWorld, BlockPos toPos) {
+        RegistryVertex target = uuidMap.get(to);
+        if (target != null) {
+            graph.addEdge(from, target);
+        } else if (toWorld != null && !shardStorage.isLoaded(toWorld)) {
+            pendingTargets.computeIfAbsent(from, vertex -> new HashMap<>()).put(to, toWorld);
+            pendingSources.computeIfAbsent(to, uuid -> new HashSet<>()).add(from);
+            if (toPos != null) pendingTargetPositions.put(to, toPos);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    private void forgetPendingLinks(RegistryVertex vertex) {
+        Map<UUID, RegistryKey<World>> pending = pendingTargets.remove(vertex);
+        if (pending == null) return;
+        for (UUID target : pending.keySet()) {
+            Set<RegistryVertex> sources = pendingSources.get(target);
+            if (sources != null) {
+                sources.remove(vertex);
+                if (sources.isEmpty()) {
+                    pendingSources.remove(target);
+                    pendingTargetPositions.remove(target);
+                }
+            }
+        }
+    }
+
+    private void loadRift(Rift rift) {
+        rift.world = rift.location.world;
+        graph.addVertex(rift);
+        uuidMap.put(rift.id, rift);
+        putRift(rift);
+        if (!(rift instanceof RiftPlaceholder)) {
+            cacheVirtualLocation(rift);
+            spatialIndex.add(rift);
+        }
+        shardStorage.track(rift);
+
+        // Complete the links that were waiting for this rift
+        Set<RegistryVertex> sources = pendingSources.remove(rift.id);
+        pendingTargetPositions.remove(rift.id);
+        if (sources != null) {
+            for (RegistryVertex source : sources) {
+                graph.addEdge(source, rift);
+                Map<UUID, RegistryKey<World>> pending = pendingTargets.get(source);
+                pending.remove(rift.id);
+                if (pending.isEmpty()) pendingTargets.remove(source);
+            }
+        }
+    }
+
+    /**
+     * Reads the rifts of a dimension from its shards if this hasn't been done yet.
+     */
+    protected void ensureLoaded(RegistryKey<World> world) {
+        if (!shardStorage.setLoaded(world)) return;
+
+        List<CompoundTag> shards = shardStorage.readShards(world);
+        for (CompoundTag shard : shards) {
+            for (Tag riftNBT : shard.getList("rifts", 10)) {
+                loadRift(NbtUtil.deserialize(riftNBT, Rift.CODEC));
+            }
+            for (Tag placeholderNBT : shard.getList("placeholders", 10)) {
+                RiftPlaceholder placeholder = new RiftPlaceholder();
+                placeholder.id = ((CompoundTag) placeholderNBT).getUuid("id");
+                placeholder.location = NbtUtil.deserialize(((CompoundTag) placeholderNBT).get("location"), Location.CODEC);
+                loadRift(placeholder);
+            }
+        }
+        Map<Rift, Set<Location>> goneTargets = new HashMap<>();
+        for (CompoundTag shard : shards) {
+            goneTargets.putAll(readLinks(shard.getList("links", 10)));
+        }
+        shardStorage.clearDirty(world); // Loading isn't a change
+
+        // Links to rifts in this dimension that weren't found point to rifts that no longer exist
+        for (Iterator<Map.Entry<RegistryVertex, Map<UUID, RegistryKey<World>>>> iterator = pendingTargets.entrySet().iterator(); iterator.hasNext(); ) {
+            Map.Entry<RegistryVertex, Map<UUID, RegistryKey<World>>> entry = iterator.next();
+            entry.getValue().entrySet().removeIf(target -> {
+                if (!target.getValue().equals(world)) return false;
+                pendingSources.remove(target.getKey());
+                BlockPos pos = pendingTargetPositions.remove(target.getKey());
+                if (entry.getKey() instanceof Rift && pos != null) {
+                    goneTargets.computeIfAbsent((Rift) entry.getKey(), rift -> new HashSet<>()).add(new Location(world, pos));
+                }
+                return true;
+            });
+            if (entry.getValue().isEmpty()) iterator.remove();
+        }
+
+        // Rifts that were removed while the dimensions of the rifts linking to them weren't loaded couldn't notify them
+        goneTargets.forEach((source, targets) -> {
+            shardStorage.markDirty(source);
+            for (Location target : targets) notifyTargetGone(source, target);
+        });
+        LOGGER.debug("Loaded " + shards.size() + " rift shards for " + world.getValue());
+    }
+
+    protected void ensureAllLoaded() {
+        for (ServerWorld world : getServer().getWorlds()) {
+            ensureLoaded(world.getRegistryKey());
+        }
+    }
+
+    private void ensureTargetsLoaded(RegistryVertex vertex) {
+        Map<UUID, RegistryKey<World>> pending = pendingTargets.get(vertex);
+        if (pending == null) return;
+        for (RegistryKey<World> world : new ArrayList<>(pending.values())) {
+            ensureLoaded(world);
+        }
+    }
+
+    private void markSourceDirty(RegistryVertex from) {
+        if (from instanceof Rift) {
+            shardStorage.markDirty((Rift) from);
+        }
+        markDirty();
+    }
+
     private Map<UUID, PlayerRiftPointer> readPlayerRiftPointers(ListTag tag) {
         Map<UUID, PlayerRiftPointer> pointerMap = new HashMap<>();
         for (Tag entryNBT : tag) {
-            UUID player = ((CompoundTag) entryNBT).getUuid("player");
-            UUID rift = ((CompoundTag) entryNBT).getUuid("rift");
+            CompoundTag entry = (CompoundTag) entryNBT;
+            UUID player = entry.getUuid("player");
             PlayerRiftPointer pointer = new PlayerRiftPointer(player);
             pointerMap.put(player, pointer);
             uuidMap.put(pointer.id, pointer);
             graph.addVertex(pointer);
-            graph.addEdge(pointer, uuidMap.get(rift));
+            RegistryKey<World> riftWorld = entry.contains("world") ? RegistryKey.of(Registry.DIMENSION, new Identifier(entry.getString("world"))) : null;
+            linkOrDefer(pointer, entry.getUuid("rift"), riftWorld, null);
         }
         return pointerMap;
     }
@@ -143,54 +384,76 @@ public class RiftRegistry extends PersistentState {
     private ListTag writePlayerRiftPointers(Map<UUID, PlayerRiftPointer> playerRiftPointerMap) {
         ListTag pointers = new ListTag();
         for (Map.Entry<UUID, PlayerRiftPointer> entry : playerRiftPointerMap.entrySet()) {
+            ListTag links = new ListTag();
+            writeLinks(entry.getValue(), links);
+            if (links.size() != 1) throw new RuntimeException("PlayerRiftPointer points to more than one rift");
+            CompoundTag link = links.getCompound(0);
+
             CompoundTag entryNBT = new CompoundTag();
             entryNBT.putUuid("player", entry.getKey());
-            int count = 0;
-            for (DefaultEdge edge : graph.outgoingEdgesOf(entry.getValue())) {
-                entryNBT.putUuid("rift", graph.getEdgeTarget(edge).id);
-                count++;
-            }
-            if (count != 1) throw new RuntimeException("PlayerRiftPointer points to more than one rift");
+            entryNBT.putUuid("rift", link.getUuid("to"));
+            entryNBT.putString("world", link.getString("world"));
             pointers.add(entryNBT);
         }
         return pointers;
     }
 
+    private Rift getRiftOrNull(RegistryKey<World> world, BlockPos pos) {
+        ensureLoaded(world);
+        Long2ObjectMap<Rift> rifts = locationMap.get(world);
+        return rifts != null ? rifts.get(pos.asLong()) : null;
+    }
+
+    private void putRift(Rift rift) {
+        locationMap.computeIfAbsent(rift.location.world, world -> new Long2ObjectOpenHashMap<>()).put(rift.location.pos.asLong(), rift);
+    }
+
+    private void removeRiftAt(Location location) {
+        Long2ObjectMap<Rift> rifts = locationMap.get(location.world);
+        if (rifts != null) rifts.remove(location.pos.asLong());
+    }
+
     public boolean isRiftAt(Location location) {
-        Rift possibleRift = locationMap.get(location);
+        return isRiftAt(location.world, location.pos);
+    }
+
+    public boolean isRiftAt(RegistryKey<World> world, BlockPos pos) {
+        Rift possibleRift = getRiftOrNull(world, pos);
         return possibleRift != null && !(possibleRift instanceof RiftPlaceholder);
     }
 
     public Rift getRift(Location location) {
-        Rift rift = locationMap.get(location);
+        Rift rift = getRiftOrNull(location.world, location.pos);
         if (rift == null) throw new IllegalArgumentException("There is no rift registered at " + location);
         return rift;
     }
 
     private Rift getRiftOrPlaceholder(Location location) {
-        Rift rift = locationMap.get(location);
+        Rift rift = getRiftOrNull(location.world, location.pos);
         if (rift == null) {
             LOGGER.debug("Creating a rift placeholder at " + location);
             rift = new RiftPlaceholder();
             rift.world = location.world;
             rift.location = location;
-            locationMap.put(location, rift);
+            putRift(rift);
             uuidMap.put(rift.id, rift);
             graph.addVertex(rift);
+            shardStorage.track(rift);
         }
         return rift;
     }
 
     public void addRift(Location location) {
         LOGGER.debug("Adding rift at " + location);
-        RegistryVertex currentRift = locationMap.get(location);
+        RegistryVertex currentRift = getRiftOrNull(location.world, location.pos);
         Rift rift;
         if (currentRift instanceof RiftPlaceholder) {
             LOGGER.info("Converting a rift placeholder at " + location + " into a rift");
             rift = new Rift(location);
             rift.world = location.world;
             rift.id = currentRift.id;
-            GraphUtils.replaceVertex(graph, currentRift, rift);
+            graph.replaceVertex(currentRift, rift);
+            shardStorage.untrack((Rift) currentRift);
         } else if (currentRift == null) {
             rift = new Rift(location);
             rift.world = location.world;
@@ -199,32 +462,152 @@ public class RiftRegistry extends PersistentState {
             throw new IllegalArgumentException("There is already a rift registered at " + location);
         }
         uuidMap.put(rift.id, rift);
-        locationMap.put(location, rift);
+        putRift(rift);
+        cacheVirtualLocation(rift);
+        spatialIndex.add(rift);
+        shardStorage.track(rift);
+        markDirty();
         rift.markDirty();
     }
 
     public void removeRift(Location location) {
         LOGGER.debug("Removing rift at " + location);
 
+        // Sources in dimensions that aren't loaded yet are notified when they're loaded, since their links can't be
+        // completed anymore
         Rift rift = getRift(location);
 
-        Set<DefaultEdge> incomingEdges = graph.incomingEdgesOf(rift);
-        Set<DefaultEdge> outgoingEdges = graph.outgoingEdgesOf(rift);
+        RegistryVertex[] sources = new RegistryVertex[graph.getSourceCount(rift)];
+        for (int i = 0; i < sources.length; i++) sources[i] = graph.getSource(rift, i);
+        RegistryVertex[] targets = new RegistryVertex[graph.getTargetCount(rift)];
+        for (int i = 0; i < targets.length; i++) targets[i] = graph.getTarget(rift, i);
 
+        for (RegistryVertex source : sources) markSourceDirty(source);
+        shardStorage.untrack(rift);
+        forgetPendingLinks(rift);
         graph.removeVertex(rift);
-        locationMap.remove(location);
+        removeRiftAt(location);
         uuidMap.remove(rift.id);
+        spatialIndex.remove(rift);
+        uncacheVirtualLocation(rift);
+        markDirty();
 
         // Notify the adjacent vertices of the change
-        for (DefaultEdge edge : incomingEdges) graph.getEdgeSource(edge).targetGone(rift);
-        for (DefaultEdge edge : outgoingEdges) graph.getEdgeTarget(edge).sourceGone(rift);
+        for (RegistryVertex source : sources) source.targetGone(rift);
+        for (RegistryVertex target : targets) target.sourceGone(rift);
+    }
+
+    private void cacheVirtualLocation(Rift rift) {
+        rift.virtualLocation = VirtualLocation.fromLocation(rift.location);
+        if (ModDimensions.isDimDoorsPocketDimension(rift.location.world)) {
+            rift.pocket = PocketRegistry.instance(rift.location.world).getPocketAt(rift.location.pos);
+            if (rift.pocket != null) pocketRifts.computeIfAbsent(rift.pocket, pocket -> new HashSet<>()).add(rift);
+        }
+    }
+
+    private void uncacheVirtualLocation(Rift rift) {
+        if (rift.pocket != null) {
+            Set<Rift> rifts = pocketRifts.get(rift.pocket);
+            if (rifts != null) {
+                rifts.remove(rift);
+                if (rifts.isEmpty()) pocketRifts.remove(rift.pocket);
+            }
+            rift.pocket = null;
+        }
+        rift.virtualLocation = null;
+    }
+
+    /**
+     * Recomputes the cached virtual locations of the rifts in a pocket. Must be called whenever
+     * the pocket's virtual location changes.
+     */
+    public void invalidateVirtualLocations(Pocket pocket) {
+        Set<Rift> rifts = pocketRifts.get(pocket);
+        if (rifts == null) return;
+        for (Rift rift : rifts) {
+            rift.virtualLocation = VirtualLocation.fromLocation(rift.location);
+            spatialIndex.add(rift);
+        }
+    }
+
+    /**
+     * Queues a rift's block entity to have its color updated at the end of the tick. A rift queued several times
+     * during a tick (for example while a pocket's rifts are being registered) is only updated once.
+     */
+    public void queueColorUpdate(Rift rift) {
+        pendingColorUpdates.add(rift);
+    }
+
+    /**
+     * Tells a rift's block entity that one of its targets was removed. If the rift's chunk isn't loaded, this is
+     * remembered until it is rather than loading the chunk.
+     */
+    public void notifyTargetGone(Rift rift, Location target) {
+        applyOrDefer(rift.location, Collections.singleton(target));
+    }
+
+    public void flushNotifications() {
+        if (!loadedNotifications.isEmpty()) {
+            Map<Location, Set<Location>> notifications = loadedNotifications;
+            loadedNotifications = new LinkedHashMap<>();
+            notifications.forEach(this::applyOrDefer);
+            markDirty();
+        }
+
+        if (!pendingColorUpdates.isEmpty()) {
+            Set<Rift> rifts = pendingColorUpdates;
+            pendingColorUpdates = new LinkedHashSet<>();
+            for (Rift rift : rifts) {
+                if (!graph.containsVertex(rift)) continue; // Removed since it was queued
+                applyOrDefer(rift.location, Collections.emptySet());
+            }
+        }
+    }
+
+    /**
+     * Moves the notifications deferred for a chunk to be applied at the end of the tick. They aren't applied right
+     * away since the chunk is still being loaded.
+     */
+    public void onChunkLoad(ServerWorld world, WorldChunk chunk) {
+        Long2ObjectMap<Map<Location, Set<Location>>> worldNotifications = deferredNotifications.get(world.getRegistryKey());
+        if (worldNotifications == null) return;
+        Map<Location, Set<Location>> notifications = worldNotifications.remove(chunk.getPos().toLong());
+        if (notifications == null) return;
+        if (worldNotifications.isEmpty()) deferredNotifications.remove(world.getRegistryKey());
+
+        notifications.forEach((rift, targets) -> loadedNotifications.computeIfAbsent(rift, l -> new HashSet<>()).addAll(targets));
+    }
+
+    /**
+     * Updates a rift's block entity, invalidating its destination if it pointed to one of the removed targets and
+     * updating its color. If the chunk isn't loaded the notification is stored with the chunk instead.
+     */
+    private void applyOrDefer(Location location, Set<Location> goneTargets) {
+        if (!isRiftAt(location)) return; // Removed since it was notified
+        ServerWorld world = location.getWorld();
+        BlockPos pos = location.pos;
+        if (!world.getChunkManager().isChunkLoaded(pos.getX() >> 4, pos.getZ() >> 4)) {
+            deferredNotifications.computeIfAbsent(location.world, w -> new Long2ObjectOpenHashMap<>())
+                    .computeIfAbsent(ChunkPos.toLong(pos.getX() >> 4, pos.getZ() >> 4), k -> new HashMap<>())
+                    .computeIfAbsent(location, l -> new HashSet<>())
+                    .addAll(goneTargets);
+            if (!goneTargets.isEmpty()) markDirty();
+            return;
+        }
+
+        BlockEntity blockEntity = world.getBlockEntity(pos);
+        if (!(blockEntity instanceof RiftBlockEntity)) return;
+        RiftBlockEntity rift = (RiftBlockEntity) blockEntity;
+        for (Location target : goneTargets) {
+            rift.handleTargetGone(target);
+        }
+        if (goneTargets.isEmpty()) rift.updateColor(); // handleTargetGone already updates the color
     }
 
     private void addEdge(RegistryVertex from, RegistryVertex to) {
         graph.addEdge(from, to);
-        if (from instanceof PlayerRiftPointer) {
-            markDirty();
-        } else if (from instanceof Rift) {
+        markSourceDirty(from);
+        if (from instanceof Rift) {
             ((Rift) from).markDirty();
         }
         if (to instanceof Rift) {
@@ -234,10 +617,7 @@ public class RiftRegistry extends PersistentState {
 
     private void removeEdge(RegistryVertex from, RegistryVertex to) {
         graph.removeEdge(from, to);
-
-        if (from instanceof PlayerRiftPointer) {
-            markDirty();
-        }
+        markSourceDirty(from);
     }
 
     public void addLink(Location locationFrom, Location locationTo) {
@@ -272,6 +652,17 @@ public class RiftRegistry extends PersistentState {
         LOGGER.debug("Setting DungeonLinkProperties for rift at " + location + " to " + properties);
         Rift rift = getRift(location);
         rift.properties = properties;
+        spatialIndex.add(rift);
+        shardStorage.markDirty(rift);
+        markDirty();
+        rift.markDirty();
+    }
+
+    public void setDetached(Location location, boolean isDetached) {
+        Rift rift = getRift(location);
+        rift.isDetached = isDetached;
+        shardStorage.markDirty(rift);
+        markDirty();
         rift.markDirty();
     }
 
@@ -280,16 +671,18 @@ public class RiftRegistry extends PersistentState {
         if (pointer == null) {
             return Collections.emptySet();
         } else {
-            return graph.outgoingEdgesOf(pointer).stream()
-                    .map(graph::getEdgeTarget)
-                    .map(Rift.class::cast)
-                    .map(rift -> rift.location)
-                    .collect(Collectors.toSet());
+            ensureTargetsLoaded(pointer);
+            Set<Location> entrances = new HashSet<>();
+            for (int i = 0; i < graph.getTargetCount(pointer); i++) {
+                entrances.add(((Rift) graph.getTarget(pointer, i)).location);
+            }
+            return entrances;
         }
     }
 
     public Location getPocketEntrance(Pocket pocket) {
-        return getPocketEntrances(pocket).stream().findFirst().orElse(null);
+        Rift entrance = (Rift) followPointer(pocketEntranceMap.get(pocket));
+        return entrance != null ? entrance.location : null;
     }
 
     public void addPocketEntrance(Pocket pocket, Location location) {
@@ -301,6 +694,7 @@ public class RiftRegistry extends PersistentState {
             graph.addVertex(pointer);
             pocketEntranceMap.put(pocket, pointer);
             uuidMap.put(pointer.id, pointer);
+            markDirty();
         }
         Rift rift = getRift(location);
         addEdge(pointer, rift);
@@ -309,19 +703,26 @@ public class RiftRegistry extends PersistentState {
     public Location getPrivatePocketEntrance(UUID playerUUID) {
         // Try to get the last used entrance
         PlayerRiftPointer entrancePointer = lastPrivatePocketEntrances.get(playerUUID);
-        Rift entrance = (Rift) GraphUtils.followPointer(graph, entrancePointer);
+        Rift entrance = (Rift) followPointer(entrancePointer);
         if (entrance != null) return entrance.location;
 
         // If there was no last used private entrance, get the first player's private pocket entrance
         return getPocketEntrance(PrivatePocketData.instance().getPrivatePocket(playerUUID));
     }
 
+    private RegistryVertex followPointer(RegistryVertex pointer) {
+        if (pointer != null) ensureTargetsLoaded(pointer);
+        return graph.followPointer(pointer);
+    }
+
     private void setPlayerRiftPointer(UUID playerUUID, Location rift, Map<UUID, PlayerRiftPointer> map) {
         PlayerRiftPointer pointer = map.get(playerUUID);
         if (pointer != null) {
+            forgetPendingLinks(pointer);
             graph.removeVertex(pointer);
             map.remove(playerUUID);
             uuidMap.remove(pointer.id);
+            markDirty();
         }
         if (rift != null) {
             pointer = new PlayerRiftPointer(playerUUID);
@@ -339,7 +740,7 @@ public class RiftRegistry extends PersistentState {
 
     public Location getPrivatePocketExit(UUID playerUUID) {
         PlayerRiftPointer entrancePointer = lastPrivatePocketExits.get(playerUUID);
-        Rift entrance = (Rift) GraphUtils.followPointer(graph, entrancePointer);
+        Rift entrance = (Rift) followPointer(entrancePointer);
         return entrance != null ? entrance.location : null;
     }
 
@@ -350,7 +751,7 @@ public class RiftRegistry extends PersistentState {
 
     public Location getOverworldRift(UUID playerUUID) {
         PlayerRiftPointer entrancePointer = overworldRifts.get(playerUUID);
-        Rift rift = (Rift) GraphUtils.followPointer(graph, entrancePointer);
+        Rift rift = (Rift) followPointer(entrancePointer);
         return rift != null ? rift.location : null;
     }
 
@@ -360,22 +761,67 @@ public class RiftRegistry extends PersistentState {
     }
 
     public Collection<Rift> getRifts() {
-        return locationMap.values();
+        ensureAllLoaded();
+        List<Rift> rifts = new ArrayList<>();
+        for (Long2ObjectMap<Rift> worldRifts : locationMap.values()) {
+            rifts.addAll(worldRifts.values());
+        }
+        return rifts;
+    }
+
+    /**
+     * Gets the spatial index, with every rift in a virtual world loaded. These are the rifts in the pocket dimensions
+     * and in every world that maps to the virtual world, see {@link VirtualLocation#fromLocation}.
+     */
+    public RiftSpatialIndex getSpatialIndex(RegistryKey<World> virtualWorld) {
+        for (ServerWorld world : getServer().getWorlds()) {
+            RegistryKey<World> key = world.getRegistryKey();
+            if (ModDimensions.isDimDoorsPocketDimension(key)) {
+                ensureLoaded(key); // Pockets can be in any virtual world
+            } else if (ModDimensions.isLimboDimension(world) ? key == virtualWorld : virtualWorld == World.OVERWORLD) {
+                ensureLoaded(key); // Limbo is its own virtual world, the other worlds are in the overworld's
+            }
+        }
+        return spatialIndex;
     }
 
     public Set<Location> getTargets(Location location) {
-        return graph.outgoingEdgesOf(getRift(location)).stream()
-                .map(graph::getEdgeTarget)
-                .map(Rift.class::cast)
-                .map(rift -> rift.location)
-                .collect(Collectors.toSet());
+        Rift rift = getRift(location);
+        Set<Location> targets = new HashSet<>();
+        for (int i = 0; i < graph.getTargetCount(rift); i++) {
+            targets.add(((Rift) graph.getTarget(rift, i)).location);
+        }
+        return targets;
     }
 
     public Set<Location> getSources(Location location) {
-        return graph.incomingEdgesOf(getRift(location)).stream()
-                .map(graph::getEdgeTarget)
-                .map(Rift.class::cast)
-                .map(rift -> rift.location)
-                .collect(Collectors.toSet());
+        Rift rift = getRift(location);
+        Set<Location> sources = new HashSet<>();
+        for (int i = 0; i < graph.getSourceCount(rift); i++) {
+            RegistryVertex source = graph.getSource(rift, i);
+            if (source instanceof Rift) sources.add(((Rift) source).location); // Pointers aren't rifts
+        }
+        return sources;
+    }
+
+    // Allocation-free iteration over links, for (int i = 0; i < getTargetCount(rift); i++) getTarget(rift, i)
+
+    public int getTargetCount(Rift rift) {
+        return graph.getTargetCount(rift);
+    }
+
+    public Rift getTarget(Rift rift, int index) {
+        return (Rift) graph.getTarget(rift, index);
+    }
+
+    /**
+     * Sources include pointers as well as rifts.
+     */
+    public int getSourceCount(Rift rift) {
+        return graph.getSourceCount(rift);
+    }
+
+    public RegistryVertex getSource(Rift rift, int index) {
+        return graph.getSource(rift, index);
     }
 }
@@ -0,0 +1,167 @@
+package org.dimdev.dimdoors.rift.registry;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.dimdev.dimdoors.DimensionalDoorsInitializer;
+
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.util.Identifier;
+import net.minecraft.util.WorldSavePath;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.registry.RegistryKey;
+import net.minecraft.world.World;
+
+/**
+ * Keeps track of which region shard every rift is saved in, and which shards changed since they were last written.
+ * Each shard covers 32x32 chunks of one dimension and is stored in its own file, so saving only rewrites the shards
+ * that were touched, and the rifts of a dimension only need to be read once something asks for them.
+ */
+public class RiftShardStorage {
+    private static final Logger LOGGER = LogManager.getLogger();
+    public static final int SHARD_BITS = 9; // 32x32 chunk regions
+
+    private final Map<RegistryKey<World>, Long2ObjectMap<Set<Rift>>> shards = new HashMap<>();
+    private final Map<RegistryKey<World>, LongSet> dirtyShards = new HashMap<>();
+    private final Set<RegistryKey<World>> loadedWorlds = new HashSet<>();
+
+    public static long shardKey(BlockPos pos) {
+        return (long) (pos.getX() >> SHARD_BITS) & 0xFFFFFFFFL | ((long) (pos.getZ() >> SHARD_BITS) & 0xFFFFFFFFL) << 32;
+    }
+
+    public boolean isLoaded(RegistryKey<World> world) {
+        return loadedWorlds.contains(world);
+    }
+
+    /**
+     * Marks a dimension as loaded.
+     *
+     * @return false if the dimension was already loaded
+     */
+    public boolean setLoaded(RegistryKey<World> world) {
+        return loadedWorlds.add(world);
+    }
+
+    public void track(Rift rift) {
+        shards.computeIfAbsent(rift.location.world, world -> new Long2ObjectOpenHashMap<>())
+                .computeIfAbsent(shardKey(rift.location.pos), key -> new HashSet<>())
+                .add(rift);
+        markDirty(rift);
+    }
+
+    public void untrack(Rift rift) {
+        Long2ObjectMap<Set<Rift>> worldShards = shards.get(rift.location.world);
+        if (worldShards == null) return;
+        long key = shardKey(rift.location.pos);
+        Set<Rift> rifts = worldShards.get(key);
+        if (rifts == null) return;
+        rifts.remove(rift);
+        if (rifts.isEmpty()) worldShards.remove(key); // An empty dirty shard has its file deleted
+        markDirty(rift);
+    }
+
+    public void markDirty(Rift rift) {
+        dirtyShards.computeIfAbsent(rift.location.world, world -> new LongOpenHashSet()).add(shardKey(rift.location.pos));
+    }
+
+    public void markAllDirty() {
+        for (Map.Entry<RegistryKey<World>, Long2ObjectMap<Set<Rift>>> entry : shards.entrySet()) {
+            dirtyShards.computeIfAbsent(entry.getKey(), world -> new LongOpenHashSet()).addAll(entry.getValue().keySet());
+        }
+    }
+
+    public void clearDirty(RegistryKey<World> world) {
+        dirtyShards.remove(world);
+    }
+
+    public boolean hasDirtyShards() {
+        return !dirtyShards.isEmpty();
+    }
+
+    /**
+     * Reads every shard saved for a dimension.
+     */
+    public List<CompoundTag> readShards(RegistryKey<World> world) {
+        File[] files = getWorldDirectory(world).listFiles((dir, name) -> name.startsWith("r.") && name.endsWith(".dat"));
+        if (files == null) return Collections.emptyList();
+
+        List<CompoundTag> tags = new ArrayList<>();
+        for (File file : files) {
+            try (InputStream in = new FileInputStream(file)) {
+                tags.add(NbtIo.readCompressed(in));
+            } catch (IOException e) {
+                LOGGER.error("Failed to read rift shard " + file, e);
+            }
+        }
+        return tags;
+    }
+
+    /**
+     * Rewrites the files of all dirty shards, deleting the ones that no longer contain any rifts.
+     *
+     * @param writer Serializes the rifts of a shard
+     */
+    public void writeDirtyShards(ShardWriter writer) {
+        for (Map.Entry<RegistryKey<World>, LongSet> entry : dirtyShards.entrySet()) {
+            RegistryKey<World> world = entry.getKey();
+            Long2ObjectMap<Set<Rift>> worldShards = shards.getOrDefault(world, new Long2ObjectOpenHashMap<>());
+            File directory = getWorldDirectory(world);
+            directory.mkdirs();
+
+            for (LongIterator iterator = entry.getValue().iterator(); iterator.hasNext(); ) {
+                long key = iterator.nextLong();
+                File file = new File(directory, "r." + (int) key + "." + (int) (key >>> 32) + ".dat");
+                Set<Rift> rifts = worldShards.get(key);
+                if (rifts == null || rifts.isEmpty()) {
+                    if (file.exists() && !file.delete()) LOGGER.error("Failed to delete empty rift shard " + file);
+                    continue;
+                }
+
+                // Written to a temporary file first so that a crash while saving doesn't leave a truncated shard
+                File tempFile = new File(directory, file.getName() + ".tmp");
+                try {
+                    try (OutputStream out = new FileOutputStream(tempFile)) {
+                        NbtIo.writeCompressed(writer.write(rifts), out);
+                    }
+                    Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                } catch (IOException e) {
+                    LOGGER.error("Failed to write rift shard " + file, e);
+                }
+            }
+        }
+        dirtyShards.clear();
+    }
+
+    private static File getWorldDirectory(RegistryKey<World> world) {
+        Identifier id = world.getValue();
+        return DimensionalDoorsInitializer.getServer().getSavePath(WorldSavePath.ROOT)
+                .resolve("data").resolve("dimdoors_rifts").resolve(id.getNamespace()).resolve(id.getPath())
+                .toFile();
+    }
+
+    @FunctionalInterface
+    public interface ShardWriter {
+        CompoundTag write(Set<Rift> rifts);
+    }
+}
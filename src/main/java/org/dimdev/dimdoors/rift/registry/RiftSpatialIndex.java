@@ -0,0 +1,148 @@
+package org.dimdev.dimdoors.rift.registry;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import org.dimdev.dimdoors.world.pocket.VirtualLocation;
+
+import net.minecraft.util.registry.RegistryKey;
+import net.minecraft.world.World;
+
+/**
+ * Buckets rifts that can be randomly linked to by link group, virtual world, depth and a coarse x/z grid, so that
+ * link selection can bound the total weight of a whole bucket before looking at the rifts inside it.
+ */
+public class RiftSpatialIndex {
+    public static final int CELL_BITS = 8; // 256x256 block cells
+    public static final int CELL_SIZE = 1 << CELL_BITS;
+
+    private final Map<Integer, Map<RegistryKey<World>, Long2ObjectMap<Cell>>> cells = new HashMap<>(); // Group -> virtual world -> cell
+    private final Map<Rift, Entry> entries = new HashMap<>();
+
+    /**
+     * Indexes a rift using its current properties and virtual location. Rifts without properties, groups or any
+     * link weight are never candidates and are skipped.
+     */
+    public void add(Rift rift) {
+        if (entries.containsKey(rift)) remove(rift);
+
+        LinkProperties properties = rift.properties;
+        if (properties == null || properties.groups == null || properties.groups.isEmpty()) return;
+        float weight = Math.max(properties.floatingWeight, properties.entranceWeight); // isDetached can change without a reindex
+        if (weight <= 0) return;
+
+        VirtualLocation virtualLocation = rift.getVirtualLocation();
+        Entry entry = new Entry(virtualLocation, weight, new HashSet<>(properties.groups));
+        entries.put(rift, entry);
+
+        int cellX = virtualLocation.x >> CELL_BITS;
+        int cellZ = virtualLocation.z >> CELL_BITS;
+        long key = cellKey(cellX, cellZ, virtualLocation.depth);
+        for (int group : entry.groups) {
+            Long2ObjectMap<Cell> worldCells = cells.computeIfAbsent(group, g -> new HashMap<>()).computeIfAbsent(virtualLocation.world, w -> new Long2ObjectOpenHashMap<>());
+            Cell cell = worldCells.get(key);
+            if (cell == null) {
+                cell = new Cell(virtualLocation.world, cellX, cellZ, virtualLocation.depth);
+                worldCells.put(key, cell);
+            }
+            cell.rifts.add(rift);
+            cell.weightSum += weight;
+        }
+    }
+
+    public void remove(Rift rift) {
+        Entry entry = entries.remove(rift);
+        if (entry == null) return;
+
+        VirtualLocation virtualLocation = entry.virtualLocation;
+        long key = cellKey(virtualLocation.x >> CELL_BITS, virtualLocation.z >> CELL_BITS, virtualLocation.depth);
+        for (int group : entry.groups) {
+            Map<RegistryKey<World>, Long2ObjectMap<Cell>> groupCells = cells.get(group);
+            if (groupCells == null) continue;
+            Long2ObjectMap<Cell> worldCells = groupCells.get(virtualLocation.world);
+            if (worldCells == null) continue;
+            Cell cell = worldCells.get(key);
+            if (cell == null) continue;
+            cell.rifts.remove(rift);
+            cell.weightSum -= entry.weight;
+            if (cell.rifts.isEmpty()) {
+                worldCells.remove(key);
+                if (worldCells.isEmpty()) groupCells.remove(virtualLocation.world);
+                if (groupCells.isEmpty()) cells.remove(group);
+            }
+        }
+    }
+
+    /**
+     * Gets every non-empty cell of a virtual world containing rifts in at least one of the groups. A rift in several
+     * of the groups will be present in several of the returned cells.
+     */
+    public List<Cell> getCells(Set<Integer> groups, RegistryKey<World> virtualWorld) {
+        List<Cell> result = new ArrayList<>();
+        for (int group : groups) {
+            Map<RegistryKey<World>, Long2ObjectMap<Cell>> groupCells = cells.get(group);
+            if (groupCells == null) continue;
+            Long2ObjectMap<Cell> worldCells = groupCells.get(virtualWorld);
+            if (worldCells != null) result.addAll(worldCells.values());
+        }
+        return result;
+    }
+
+    public void clear() {
+        cells.clear();
+        entries.clear();
+    }
+
+    private static long cellKey(int cellX, int cellZ, int depth) {
+        return ((long) cellX & 0x1FFFFF) << 43 | ((long) cellZ & 0x1FFFFF) << 22 | (long) depth & 0x3FFFFF;
+    }
+
+    private static final class Entry {
+        final VirtualLocation virtualLocation;
+        final float weight;
+        final Set<Integer> groups;
+
+        Entry(VirtualLocation virtualLocation, float weight, Set<Integer> groups) {
+            this.virtualLocation = virtualLocation;
+            this.weight = weight;
+            this.groups = groups;
+        }
+    }
+
+    public static final class Cell {
+        public final RegistryKey<World> world;
+        public final int cellX;
+        public final int cellZ;
+        public final int depth;
+        public final Set<Rift> rifts = new HashSet<>();
+        private double weightSum; // Sum of the largest link weight of each rift, an upper bound for the cell's weight
+
+        Cell(RegistryKey<World> world, int cellX, int cellZ, int depth) {
+            this.world = world;
+            this.cellX = cellX;
+            this.cellZ = cellZ;
+            this.depth = depth;
+        }
+
+        public double getWeightSum() {
+            return weightSum;
+        }
+
+        /**
+         * @return The smallest x/z distance between a point and any block of this cell
+         */
+        public double minCoordDistance(int x, int z) {
+            int minX = cellX << CELL_BITS;
+            int minZ = cellZ << CELL_BITS;
+            double dx = x < minX ? minX - x : Math.max(0, x - (minX + CELL_SIZE - 1));
+            double dz = z < minZ ? minZ - z : Math.max(0, z - (minZ + CELL_SIZE - 1));
+            return Math.sqrt(dx * dx + dz * dz);
+        }
+    }
+}
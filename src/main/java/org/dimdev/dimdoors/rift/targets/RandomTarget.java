@@ -1,11 +1,11 @@
 package org.dimdev.dimdoors.rift.targets;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.stream.Collectors;
 
-import com.google.common.collect.Sets;
 import com.mojang.serialization.Codec;
 import com.mojang.serialization.DataResult;
 import com.mojang.serialization.codecs.RecordCodecBuilder;
@@ -13,16 +13,20 @@ import net.minecraft.nbt.NbtOps;
 import net.minecraft.nbt.Tag;
 import org.dimdev.annotatednbt.AnnotatedNbt;
 import org.dimdev.annotatednbt.Saved;
+import org.dimdev.dimdoors.ModConfig;
 import org.dimdev.dimdoors.block.ModBlocks;
 import org.dimdev.dimdoors.block.entity.DetachedRiftBlockEntity;
 import org.dimdev.dimdoors.block.entity.RiftBlockEntity;
+import org.dimdev.dimdoors.pockets.PocketGenerationQueue;
 import org.dimdev.dimdoors.pockets.PocketGenerator;
+import org.dimdev.dimdoors.pockets.PocketPool;
 import org.dimdev.dimdoors.rift.registry.LinkProperties;
 import org.dimdev.dimdoors.rift.registry.Rift;
 import org.dimdev.dimdoors.rift.registry.RiftRegistry;
+import org.dimdev.dimdoors.rift.registry.RiftSpatialIndex;
 import org.dimdev.dimdoors.util.Location;
 import org.dimdev.dimdoors.util.WorldUtil;
-import org.dimdev.dimdoors.util.math.MathUtil;
+import org.dimdev.dimdoors.util.math.WeightedSampler;
 import org.dimdev.dimdoors.world.pocket.Pocket;
 import org.dimdev.dimdoors.world.pocket.VirtualLocation;
 
@@ -80,46 +84,69 @@ public class RandomTarget extends VirtualTarget { // TODO: Split into DungeonTar
 
     @Override
     public Target receiveOther() { // TODO: Wrap rather than replace
+        // Use the dungeon pocket that was being generated for this rift once it's done
+        PocketGenerationQueue.Task task = PocketGenerationQueue.INSTANCE.getTask(location);
+        if (task != null) {
+            Pocket pocket = PocketGenerationQueue.INSTANCE.claim(location);
+            if (pocket != null) return enterNewPocket(pocket);
+            if (task.getState() != PocketGenerationQueue.State.FAILED) return new MessageTarget("rifts.generating");
+        }
+
         VirtualLocation virtualLocationHere = VirtualLocation.fromLocation(location);
 
-        Map<Location, Float> riftWeights = new HashMap<>();
-        if (newRiftWeight > 0) riftWeights.put(null, newRiftWeight);
-
-        for (Rift otherRift : RiftRegistry.instance().getRifts()) {
-            VirtualLocation otherVirtualLocation = VirtualLocation.fromLocation(otherRift.location);
-            if (otherRift.properties == null) continue;
-            double otherWeight = otherRift.isDetached ? otherRift.properties.floatingWeight : otherRift.properties.entranceWeight;
-            if (otherWeight == 0 || Sets.intersection(acceptedGroups, otherRift.properties.groups).isEmpty()) continue;
-
-            // Calculate the distance as sqrt((coordFactor * coordDistance)^2 + (depthFactor * depthDifference)^2)
-            if (otherVirtualLocation == null || otherRift.properties.linksRemaining == 0) continue;
-            double depthDifference = otherVirtualLocation.depth - virtualLocationHere.depth;
-            double coordDistance = Math.sqrt(sq(otherVirtualLocation.x - virtualLocationHere.x)
-                    + sq(otherVirtualLocation.z - virtualLocationHere.z));
-            double depthFactor = depthDifference > 0 ? positiveDepthFactor : negativeDepthFactor;
-            double distance = Math.sqrt(sq(coordFactor * coordDistance) + sq(depthFactor * depthDifference));
-
-            // Calculate the weight as 4m/pi w/(m^2/d + d)^2. This is similar to how gravitational/electromagnetic attraction
-            // works in physics (G m1 m2/d^2 and k_e m1 m2/d^2). Even though we add a depth dimension to the world, we keep
-            // the weight inversly proportionally to the area of a sphere (the square of the distance) rather than a
-            // hypersphere (the cube of the area) because the y coordinate does not matter for now. We use m^2/d + d
-            // rather than d such that the probability near 0 tends to 0 rather than infinity. f(m^2/d) is a special case
-            // of f((m^(a+1)/a)/d^a). m is the location of f's maximum. The constant 4m/pi makes it such that a newRiftWeight
-            // of 1 is equivalent to having a total link weight of 1 distributed equally across all layers.
-            // TODO: We might want an a larger than 1 to make the function closer to 1/d^2
-            double weight = 4 * weightMaximum / Math.PI * otherWeight / sq(sq(weightMaximum) / distance + distance);
-            riftWeights.put(otherRift.location, (float) weight);
+        WeightedSampler.Builder<Location> riftWeights = WeightedSampler.builder();
+        riftWeights.add(null, newRiftWeight); // Skipped if newRiftWeight isn't positive
+
+        // Bound the total weight of every indexed cell, then weigh the rifts of the most promising cells first, until
+        // the cells that are left can't add up to a meaningful fraction of the total weight. Only rifts in the same
+        // virtual world are candidates, so that other dimensions don't need to be loaded.
+        List<RiftSpatialIndex.Cell> cells = RiftRegistry.instance().getSpatialIndex(virtualLocationHere.world).getCells(acceptedGroups, virtualLocationHere.world);
+        double[] bounds = new double[cells.size()];
+        Integer[] order = new Integer[cells.size()];
+        double remainingBound = 0;
+        for (int i = 0; i < cells.size(); i++) {
+            RiftSpatialIndex.Cell cell = cells.get(i);
+            double minDistance = distance(cell.minCoordDistance(virtualLocationHere.x, virtualLocationHere.z), cell.depth - virtualLocationHere.depth);
+            bounds[i] = weight(cell.getWeightSum(), Math.max(minDistance, weightMaximum)); // The weight function peaks at weightMaximum
+            order[i] = i;
+            remainingBound += bounds[i];
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(bounds[b], bounds[a]));
+
+        double totalWeight = Math.max(newRiftWeight, 0);
+        Set<Rift> seen = acceptedGroups.size() > 1 ? new HashSet<>() : null;
+        for (int i : order) {
+            if (remainingBound <= ModConfig.GENERAL.randomLinkWeightTolerance * totalWeight) break;
+            remainingBound -= bounds[i];
+
+            for (Rift otherRift : cells.get(i).rifts) {
+                if (seen != null && !seen.add(otherRift)) continue;
+                if (otherRift.properties == null) continue;
+                double otherWeight = otherRift.isDetached ? otherRift.properties.floatingWeight : otherRift.properties.entranceWeight;
+                if (otherWeight == 0 || otherRift.properties.linksRemaining == 0) continue;
+
+                // Calculate the distance as sqrt((coordFactor * coordDistance)^2 + (depthFactor * depthDifference)^2)
+                VirtualLocation otherVirtualLocation = otherRift.getVirtualLocation();
+                double depthDifference = otherVirtualLocation.depth - virtualLocationHere.depth;
+                double coordDistance = Math.sqrt(sq(otherVirtualLocation.x - virtualLocationHere.x)
+                        + sq(otherVirtualLocation.z - virtualLocationHere.z));
+                double distance = distance(coordDistance, depthDifference);
+
+                double weight = weight(otherWeight, distance);
+                riftWeights.add(otherRift.location, weight);
+                totalWeight += weight;
+            }
         }
 
         Location selectedLink;
-        if (riftWeights.size() == 0) {
+        if (riftWeights.isEmpty()) {
             if (newRiftWeight == -1) {
                 selectedLink = null;
             } else {
                 return null;
             }
         } else {
-            selectedLink = MathUtil.weightedRandom(riftWeights);
+            selectedLink = riftWeights.build().sample();
         }
 
         // Check if we have to generate a new rift
@@ -178,14 +205,15 @@ public class RandomTarget extends VirtualTarget { // TODO: Split into DungeonTar
                 if (!noLink) linkRifts(location, new Location((ServerWorld) world, pos));
                 return riftEntity.as(Targets.ENTITY);
             } else {
-                // Make a new dungeon pocket
+                // Use a pre-generated dungeon pocket, or start generating a new one that the entity can enter once it's done
                 RiftBlockEntity thisRift = (RiftBlockEntity) location.getBlockEntity();
                 LinkProperties newLink = thisRift.getProperties() != null ? thisRift.getProperties().toBuilder().linksRemaining(0).build() : null;
-                Pocket pocket = PocketGenerator.generateDungeonPocket(virtualLocation, new GlobalReference(!noLinkBack ? location : null), newLink); // TODO make the generated dungeon of the same type, but in the overworld
-
-                // Link the rift if necessary and teleport the entity
-                if (!noLink) linkRifts(location, RiftRegistry.instance().getPocketEntrance(pocket));
-                return (Target) RiftRegistry.instance().getPocketEntrance(pocket).getBlockEntity();
+                VirtualTarget linkTo = new GlobalReference(!noLinkBack ? location : null);
+                String group = PocketGenerator.getDungeonGroup(virtualLocation); // TODO make the generated dungeon of the same type, but in the overworld
+                Pocket pocket = PocketPool.INSTANCE.takeDungeonPocket(group, virtualLocation, linkTo, newLink);
+                if (pocket != null) return enterNewPocket(pocket);
+                if (PocketGenerator.queueDungeonPocket(location, group, virtualLocation, linkTo, newLink) == null) return null;
+                return new MessageTarget("rifts.generating");
             }
         } else {
             // An existing rift was selected
@@ -198,6 +226,13 @@ public class RandomTarget extends VirtualTarget { // TODO: Split into DungeonTar
         }
     }
 
+    private Target enterNewPocket(Pocket pocket) {
+        // Link the rift if necessary and teleport the entity
+        Location entrance = RiftRegistry.instance().getPocketEntrance(pocket);
+        if (!noLink) linkRifts(location, entrance);
+        return (Target) entrance.getBlockEntity();
+    }
+
     private static void linkRifts(Location from, Location to) {
         RiftBlockEntity BlockEntityFrom = (RiftBlockEntity) from.getBlockEntity();
         RiftBlockEntity BlockEntityTo = (RiftBlockEntity) to.getBlockEntity();
@@ -210,6 +245,23 @@ public class RandomTarget extends VirtualTarget { // TODO: Split into DungeonTar
         }
     }
 
+    private double distance(double coordDistance, double depthDifference) {
+        double depthFactor = depthDifference > 0 ? positiveDepthFactor : negativeDepthFactor;
+        return Math.sqrt(sq(coordFactor * coordDistance) + sq(depthFactor * depthDifference));
+    }
+
+    // Calculate the weight as 4m/pi w/(m^2/d + d)^2. This is similar to how gravitational/electromagnetic attraction
+    // works in physics (G m1 m2/d^2 and k_e m1 m2/d^2). Even though we add a depth dimension to the world, we keep
+    // the weight inversly proportionally to the area of a sphere (the square of the distance) rather than a
+    // hypersphere (the cube of the area) because the y coordinate does not matter for now. We use m^2/d + d
+    // rather than d such that the probability near 0 tends to 0 rather than infinity. f(m^2/d) is a special case
+    // of f((m^(a+1)/a)/d^a). m is the location of f's maximum. The constant 4m/pi makes it such that a newRiftWeight
+    // of 1 is equivalent to having a total link weight of 1 distributed equally across all layers.
+    // TODO: We might want an a larger than 1 to make the function closer to 1/d^2
+    private double weight(double otherWeight, double distance) {
+        return 4 * weightMaximum / Math.PI * otherWeight / sq(sq(weightMaximum) / distance + distance);
+    }
+
     private double sq(double a) {
         return a * a;
     }
@@ -0,0 +1,58 @@
+package org.dimdev.dimdoors.util.math;
+
+import java.util.Arrays;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+
+/**
+ * A piecewise linear function of depth, given as (depth, value) points. Between two points the value is interpolated
+ * linearly, and before the first or after the last point it stays at that point's value.
+ */
+public final class DepthCurve {
+    private final int[] depths;
+    private final float[] values;
+
+    public DepthCurve(int[] depths, float[] values) {
+        if (depths.length == 0 || depths.length != values.length) throw new IllegalArgumentException("A depth curve needs the same, non-zero number of depths and values");
+        for (int i = 1; i < depths.length; i++) {
+            if (depths[i] <= depths[i - 1]) throw new IllegalArgumentException("Depth curve points must be sorted by increasing depth");
+        }
+        this.depths = depths;
+        this.values = values;
+    }
+
+    /**
+     * Reads a curve from a json array of [depth, value] pairs, for example {@code [[0, 1], [200, 0]]}.
+     */
+    public static DepthCurve fromJson(JsonArray json) {
+        int[] depths = new int[json.size()];
+        float[] values = new float[json.size()];
+        int i = 0;
+        for (JsonElement pointElement : json) {
+            JsonArray point = pointElement.getAsJsonArray();
+            depths[i] = point.get(0).getAsInt();
+            values[i] = point.get(1).getAsFloat();
+            i++;
+        }
+        return new DepthCurve(depths, values);
+    }
+
+    /**
+     * @return The depth after which the value no longer changes
+     */
+    public int getLastDepth() {
+        return depths[depths.length - 1];
+    }
+
+    public float getValue(int depth) {
+        if (depth <= depths[0]) return values[0];
+        if (depth >= depths[depths.length - 1]) return values[values.length - 1];
+
+        int index = Arrays.binarySearch(depths, depth);
+        if (index >= 0) return values[index];
+        int next = -index - 1;
+        float t = (float) (depth - depths[next - 1]) / (depths[next] - depths[next - 1]);
+        return values[next - 1] + t * (values[next] - values[next - 1]);
+    }
+}
@@ -0,0 +1,64 @@
+package org.dimdev.dimdoors.util.math;
+
+import java.util.Collection;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Weighted selection tables for values whose weights depend on depth. The weights are evaluated once per depth bucket
+ * when the sampler is built, so sampling at a given depth costs the same as sampling a single {@link WeightedSampler}.
+ * Depths past the last bucket use the last bucket.
+ */
+public final class DepthSampler<T> {
+    private final WeightedSampler<T>[] buckets;
+    private final int bucketSize;
+
+    private DepthSampler(WeightedSampler<T>[] buckets, int bucketSize) {
+        this.buckets = buckets;
+        this.bucketSize = bucketSize;
+    }
+
+    /**
+     * @param values     The values to choose from
+     * @param weight     The weight of a value at a depth
+     * @param lastDepth  The depth after which no weight changes anymore
+     * @param bucketSize The number of consecutive depths that share a table. Each table is evaluated at the middle
+     *                   depth of its bucket.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> DepthSampler<T> build(Collection<T> values, DepthWeight<T> weight, int lastDepth, int bucketSize) {
+        bucketSize = Math.max(bucketSize, 1);
+        int bucketCount = Math.max(lastDepth, 0) / bucketSize + 1;
+        WeightedSampler<T>[] buckets = new WeightedSampler[bucketCount];
+        for (int bucket = 0; bucket < bucketCount; bucket++) {
+            int depth = bucket == bucketCount - 1 ? Math.max(lastDepth, 0) : bucket * bucketSize + bucketSize / 2;
+            WeightedSampler.Builder<T> builder = WeightedSampler.builder();
+            for (T value : values) {
+                builder.add(value, weight.getWeight(value, depth));
+            }
+            buckets[bucket] = builder.build();
+        }
+        return new DepthSampler<>(buckets, bucketSize);
+    }
+
+    public WeightedSampler<T> getBucket(int depth) {
+        return buckets[Math.min(Math.max(depth, 0) / bucketSize, buckets.length - 1)];
+    }
+
+    public boolean isEmpty(int depth) {
+        return getBucket(depth).isEmpty();
+    }
+
+    public T sample(int depth) {
+        return sample(depth, ThreadLocalRandom.current());
+    }
+
+    public T sample(int depth, Random random) {
+        return getBucket(depth).sample(random);
+    }
+
+    @FunctionalInterface
+    public interface DepthWeight<T> {
+        double getWeight(T value, int depth);
+    }
+}
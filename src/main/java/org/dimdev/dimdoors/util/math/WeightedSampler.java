@@ -0,0 +1,119 @@
+package org.dimdev.dimdoors.util.math;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * An immutable weighted selection table. Building it takes one pass over the weights, after which every sample is a
+ * binary search over the cumulative weights, so a table that is built once can be sampled any number of times
+ * without allocating.
+ */
+public final class WeightedSampler<T> {
+    private static final WeightedSampler<?> EMPTY = new WeightedSampler<>(new Object[0], new double[0], 0);
+
+    private final Object[] values;
+    private final double[] cumulativeWeights;
+    private final int size;
+
+    private WeightedSampler(Object[] values, double[] cumulativeWeights, int size) {
+        this.values = values;
+        this.cumulativeWeights = cumulativeWeights;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T> WeightedSampler<T> empty() {
+        return (WeightedSampler<T>) EMPTY;
+    }
+
+    public static <T> WeightedSampler<T> of(Map<T, ? extends Number> weights) {
+        Builder<T> builder = new Builder<>(weights.size());
+        for (Map.Entry<T, ? extends Number> entry : weights.entrySet()) {
+            builder.add(entry.getKey(), entry.getValue().doubleValue());
+        }
+        return builder.build();
+    }
+
+    public static <T> Builder<T> builder() {
+        return new Builder<>(8);
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public double getTotalWeight() {
+        return size == 0 ? 0 : cumulativeWeights[size - 1];
+    }
+
+    /**
+     * @return A random value, chosen with a probability proportional to its weight, or null if there are none
+     */
+    public T sample() {
+        return sample(ThreadLocalRandom.current());
+    }
+
+    public T sample(Random random) {
+        return size == 0 ? null : get(random.nextDouble() * cumulativeWeights[size - 1]);
+    }
+
+    @SuppressWarnings("unchecked")
+    private T get(double point) {
+        // Find the first value whose cumulative weight is larger than the point
+        int low = 0;
+        int high = size - 1;
+        while (low < high) {
+            int middle = low + high >>> 1;
+            if (cumulativeWeights[middle] > point) {
+                high = middle;
+            } else {
+                low = middle + 1;
+            }
+        }
+        return (T) values[low];
+    }
+
+    public static final class Builder<T> {
+        private Object[] values;
+        private double[] cumulativeWeights;
+        private int size = 0;
+        private double totalWeight = 0;
+
+        private Builder(int capacity) {
+            values = new Object[Math.max(capacity, 1)];
+            cumulativeWeights = new double[Math.max(capacity, 1)];
+        }
+
+        /**
+         * Adds a value, which may be null. Values with a weight that isn't positive can never be chosen and are
+         * skipped.
+         */
+        public Builder<T> add(T value, double weight) {
+            if (!(weight > 0)) return this;
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+                cumulativeWeights = Arrays.copyOf(cumulativeWeights, size * 2);
+            }
+            totalWeight += weight;
+            values[size] = value;
+            cumulativeWeights[size] = totalWeight;
+            size++;
+            return this;
+        }
+
+        public boolean isEmpty() {
+            return size == 0;
+        }
+
+        public WeightedSampler<T> build() {
+            if (size == 0) return empty();
+            return new WeightedSampler<>(Arrays.copyOf(values, size), Arrays.copyOf(cumulativeWeights, size), size);
+        }
+    }
+}
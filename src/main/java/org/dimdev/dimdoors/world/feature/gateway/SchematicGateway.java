@@ -9,10 +9,9 @@ import com.google.common.collect.HashBiMap;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.dimdev.dimcore.schematic.Schematic;
+import org.dimdev.dimcore.schematic.SchematicReader;
 import org.dimdev.dimdoors.DimensionalDoorsInitializer;
 
-import net.minecraft.nbt.CompoundTag;
-import net.minecraft.nbt.NbtIo;
 import net.minecraft.world.StructureWorldAccess;
 
 public abstract class SchematicGateway extends BaseGateway {
@@ -39,12 +38,10 @@ public abstract class SchematicGateway extends BaseGateway {
             LOGGER.warn("Schematic '" + id + "' was not found in the jar or config directory, neither with the .schem extension, nor with the .schematic extension.");
         }
 
-        CompoundTag schematicNBT;
         schematic = null;
         if (streamOpened) {
             try {
-                schematicNBT = NbtIo.readCompressed(schematicDataStream);
-                schematic = Schematic.fromTag(schematicNBT);
+                schematic = SchematicReader.readCompressed(schematicDataStream);
                 //PocketTemplate.replacePlaceholders(schematic);
                 schematicDataStream.close();
             } catch (IOException ex) {
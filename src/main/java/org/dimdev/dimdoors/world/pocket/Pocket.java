@@ -7,6 +7,7 @@ import net.minecraft.block.MaterialColor;
 import net.minecraft.util.registry.RegistryKey;
 import net.minecraft.world.World;
 import org.dimdev.annotatednbt.Saved;
+import org.dimdev.dimdoors.rift.registry.RiftRegistry;
 import org.dimdev.dimdoors.util.Codecs;
 import org.dimdev.dimdoors.util.EntityUtils;
 
@@ -63,6 +64,11 @@ public final class Pocket {
         box = new BlockBox(x * 16, 0, z * 16, (x + 1) * 16, 0, (z + 1) * 16);
     }
 
+    public void setVirtualLocation(VirtualLocation virtualLocation) {
+        this.virtualLocation = virtualLocation;
+        RiftRegistry.instance().invalidateVirtualLocations(this);
+    }
+
     boolean isInBounds(BlockPos pos) {
         return box.contains(pos);
     }
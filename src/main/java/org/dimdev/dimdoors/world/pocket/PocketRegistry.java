@@ -23,6 +23,7 @@ public class PocketRegistry extends PersistentState {
     private Codec<Map<Integer, Pocket>> pocketsCodec = Codec.unboundedMap(Codec.INT, Pocket.CODEC);
 
     private static final String DATA_NAME = "pocketlib_pockets";
+    private static final Map<RegistryKey<World>, PocketRegistry> INSTANCES = new HashMap<>(); // Cleared when the server stops
 
     @Saved /*package-private*/ int gridSize; // Determines how much pockets in their dimension are spaced
     @Saved /*package-private*/ int privatePocketSize;
@@ -40,6 +41,11 @@ public class PocketRegistry extends PersistentState {
         pockets = new HashMap<>();
     }
 
+    public PocketRegistry(ServerWorld world) {
+        this();
+        this.world = world;
+    }
+
     public PocketRegistry(String s) {
         super(s);
     }
@@ -51,6 +57,11 @@ public class PocketRegistry extends PersistentState {
         publicPocketSize = tag.getInt("publicPocketSize");
         pockets = NbtUtil.deserialize(tag.get("pockets"), pocketsCodec);
         nextID = tag.getInt("nextID");
+
+        // The world isn't saved with each pocket, bind them once here rather than on every lookup
+        for (Pocket pocket : pockets.values()) {
+            pocket.world = world.getRegistryKey();
+        }
     }
 
     @Override
@@ -64,22 +75,24 @@ public class PocketRegistry extends PersistentState {
     }
 
     public static PocketRegistry instance(RegistryKey<World> key) {
+        PocketRegistry instance = INSTANCES.get(key);
+        if (instance != null) return instance;
+
         ServerWorld world = WorldUtil.getWorld(key);
 
         if (!(ModDimensions.isDimDoorsPocketDimension(world))) {
             throw new UnsupportedOperationException("PocketRegistry is only available for pocket dimensions!");
         }
 
-        PocketRegistry instance = world.getPersistentStateManager().getOrCreate(PocketRegistry::new, DATA_NAME);
-
-        instance.world = world;
-        for (Pocket pocket : instance.pockets.values()) {
-            pocket.world = key;
-        }
-
+        instance = world.getPersistentStateManager().getOrCreate(() -> new PocketRegistry(world), DATA_NAME);
+        INSTANCES.put(key, instance);
         return instance;
     }
 
+    public static void clearInstances() {
+        INSTANCES.clear();
+    }
+
     /**
      * Create a new blank pocket.
      *
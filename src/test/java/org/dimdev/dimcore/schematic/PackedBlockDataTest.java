@@ -0,0 +1,83 @@
+package org.dimdev.dimcore.schematic;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class PackedBlockDataTest {
+    @Test
+    public void usesTheSpongeIndexOrder() {
+        PackedBlockData blockData = new PackedBlockData(3, 4, 5);
+        assertEquals(3 * 4 * 5, blockData.size());
+        assertEquals(0, blockData.index(0, 0, 0));
+        assertEquals(1, blockData.index(1, 0, 0));
+        assertEquals(3, blockData.index(0, 0, 1));
+        assertEquals(15, blockData.index(0, 1, 0));
+        assertEquals(2 + 4 * 3 + 3 * 15, blockData.index(2, 3, 4));
+
+        blockData.set(2, 3, 4, 9);
+        assertEquals(9, blockData.get(blockData.index(2, 3, 4)));
+    }
+
+    @Test
+    public void growsWhenLargerIndicesAreStored() {
+        PackedBlockData blockData = new PackedBlockData(16, 16, 16);
+        assertEquals(4, blockData.getBits());
+        Random random = new Random(0);
+        int[] expected = new int[blockData.size()];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = random.nextInt(16);
+            blockData.set(i, expected[i]);
+        }
+
+        // Each growth must keep the values that were already stored
+        for (int max : new int[]{16, 128, 300, 4096, 70000, 1 << 20}) {
+            int index = random.nextInt(expected.length);
+            expected[index] = max;
+            blockData.set(index, max);
+            for (int i = 0; i < expected.length; i++) {
+                assertEquals(expected[i], blockData.get(i));
+            }
+        }
+        assertEquals(21, blockData.getBits());
+    }
+
+    @Test
+    public void valuesDontSpanTwoLongs() {
+        PackedBlockData blockData = new PackedBlockData(7, 3, 5, 1 << 13); // 13 bits, 4 values per long
+        assertEquals(13, blockData.getBits());
+        assertEquals((blockData.size() + 3) / 4, blockData.getStorage().length);
+        for (int i = 0; i < blockData.size(); i++) {
+            blockData.set(i, (1 << 13) - 1 - i);
+        }
+        for (int i = 0; i < blockData.size(); i++) {
+            assertEquals((1 << 13) - 1 - i, blockData.get(i));
+        }
+    }
+
+    @Test
+    public void wrapsPackedStorage() {
+        PackedBlockData blockData = new PackedBlockData(10, 20, 30, 500);
+        Random random = new Random(1);
+        for (int i = 0; i < blockData.size(); i++) {
+            blockData.set(i, random.nextInt(500));
+        }
+
+        PackedBlockData wrapped = new PackedBlockData(10, 20, 30, blockData.getBits(), blockData.getStorage().clone());
+        for (int i = 0; i < blockData.size(); i++) {
+            assertEquals(blockData.get(i), wrapped.get(i));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsStorageOfTheWrongLength() {
+        new PackedBlockData(16, 16, 16, 4, new long[10]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeIndices() {
+        new PackedBlockData(1, 1, 1).set(0, -1);
+    }
+}
@@ -0,0 +1,89 @@
+package org.dimdev.dimcore.schematic;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class SchematicBlockDataTest {
+    @Test
+    public void encodesVarints() {
+        PackedBlockData blockData = new PackedBlockData(6, 1, 1);
+        int[] values = {0, 127, 128, 300, 16383, 16384};
+        for (int i = 0; i < values.length; i++) {
+            blockData.set(i, values[i]);
+        }
+
+        byte[] expected = {
+                0,
+                0x7F,
+                (byte) 0x80, 0x01,
+                (byte) 0xAC, 0x02,
+                (byte) 0xFF, 0x7F,
+                (byte) 0x80, (byte) 0x80, 0x01
+        };
+        assertArrayEquals(expected, Schematic.writeBlockData(blockData));
+    }
+
+    @Test
+    public void roundTripsSmallPalettes() {
+        roundTrip(16, 16, 16, 100);
+    }
+
+    @Test
+    public void roundTripsPalettesOver127Entries() {
+        roundTrip(16, 16, 16, 128);
+        roundTrip(16, 16, 16, 300);
+        roundTrip(9, 7, 13, 20000);
+    }
+
+    @Test
+    public void roundTripsPalettesNeedingThreeByteVarints() {
+        roundTrip(32, 32, 32, 70000);
+    }
+
+    @Test
+    public void roundTripsLargeSchematics() {
+        roundTrip(256, 64, 256, 200);
+        roundTrip(1, 255, 1, 2);
+    }
+
+    @Test
+    public void leavesMissingBlocksAsAir() {
+        PackedBlockData blockData = new PackedBlockData(4, 1, 1);
+        Schematic.readBlockData(new byte[]{5, (byte) 0x80, 0x01}, blockData);
+        assertEquals(5, blockData.get(0));
+        assertEquals(128, blockData.get(1));
+        assertEquals(0, blockData.get(2));
+        assertEquals(0, blockData.get(3));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTruncatedVarints() {
+        Schematic.readBlockData(new byte[]{1, (byte) 0x80}, new PackedBlockData(2, 1, 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsVarintsLongerThanFiveBytes() {
+        byte[] bytes = {(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x01};
+        Schematic.readBlockData(bytes, new PackedBlockData(1, 1, 1));
+    }
+
+    private static void roundTrip(int sizeX, int sizeY, int sizeZ, int paletteSize) {
+        PackedBlockData blockData = new PackedBlockData(sizeX, sizeY, sizeZ);
+        Random random = new Random(sizeX * 31L + sizeY * 17L + sizeZ + paletteSize);
+        for (int i = 0; i < blockData.size(); i++) {
+            blockData.set(i, random.nextInt(paletteSize));
+        }
+        blockData.set(blockData.size() - 1, paletteSize - 1); // The largest index is encoded at least once
+
+        byte[] bytes = Schematic.writeBlockData(blockData);
+        PackedBlockData decoded = new PackedBlockData(sizeX, sizeY, sizeZ, paletteSize);
+        Schematic.readBlockData(bytes, decoded);
+        for (int i = 0; i < blockData.size(); i++) {
+            assertEquals(blockData.get(i), decoded.get(i));
+        }
+    }
+}
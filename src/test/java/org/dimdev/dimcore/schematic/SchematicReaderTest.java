@@ -0,0 +1,183 @@
+package org.dimdev.dimcore.schematic;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import net.minecraft.Bootstrap;
+import net.minecraft.block.Blocks;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.DoubleTag;
+import net.minecraft.nbt.ListTag;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.nbt.Tag;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class SchematicReaderTest {
+    @BeforeClass
+    public static void bootstrap() {
+        Bootstrap.initialize(); // The palette is read through the block registry
+    }
+
+    @Test
+    public void readsLikeFromTag() throws IOException {
+        CompoundTag tag = createSchematic(5, 40, 6).saveToNBT();
+        assertSameSchematic(Schematic.fromTag(tag), SchematicReader.readCompressed(compress(tag)));
+    }
+
+    @Test
+    public void readsBlockDataBeforeTheSize() throws IOException {
+        CompoundTag tag = createSchematic(7, 20, 3).saveToNBT();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(bytes))) {
+            out.writeByte(tag.getType());
+            out.writeUTF("Schematic");
+            writeEntry(out, "BlockData", tag.get("BlockData")); // Before Width, Height and Length
+            for (String key : tag.getKeys()) {
+                if (!key.equals("BlockData")) writeEntry(out, key, tag.get(key));
+            }
+            out.writeByte(0);
+        }
+
+        assertSameSchematic(Schematic.fromTag(tag), SchematicReader.readCompressed(new ByteArrayInputStream(bytes.toByteArray())));
+        assertSameRegion(Schematic.fromTag(tag), SchematicReader.readCompressed(new ByteArrayInputStream(bytes.toByteArray()), 1, 1), 16, 20);
+    }
+
+    @Test
+    public void readsSectionRanges() throws IOException {
+        CompoundTag tag = createSchematic(5, 40, 6).saveToNBT();
+        Schematic full = Schematic.fromTag(tag);
+
+        assertSameRegion(full, SchematicReader.readCompressed(compress(tag), 0, 0), 0, 16);
+        assertSameRegion(full, SchematicReader.readCompressed(compress(tag), 1, 1), 16, 32);
+        assertSameRegion(full, SchematicReader.readCompressed(compress(tag), 1, 2), 16, 40);
+        assertSameRegion(full, SchematicReader.readCompressed(compress(tag), 2, 10), 32, 40); // Past the top
+        assertSameRegion(full, SchematicReader.readCompressed(compress(tag), 3, 4), 40, 40); // Above the schematic
+    }
+
+    private static Schematic createSchematic(int sizeX, int sizeY, int sizeZ) {
+        Schematic schematic = new Schematic("test", "tester", (short) sizeX, (short) sizeY, (short) sizeZ);
+        schematic.offset = new int[]{1, -2, 3};
+        schematic.palette.add(Blocks.STONE.getDefaultState());
+        schematic.palette.add(Blocks.DIRT.getDefaultState());
+        schematic.palette.add(Blocks.OAK_PLANKS.getDefaultState());
+        schematic.palette.add(Blocks.GLASS.getDefaultState());
+        schematic.paletteMax = schematic.palette.size() - 1;
+
+        Random random = new Random(sizeX * 31L + sizeY * 17L + sizeZ);
+        for (int i = 0; i < schematic.blockData.size(); i++) {
+            schematic.blockData.set(i, random.nextInt(schematic.palette.size()));
+        }
+
+        // A block entity and entities in every layer, the placeholder entities use x, y and z rather than Pos
+        for (int y = 0; y < sizeY; y++) {
+            CompoundTag blockEntity = new CompoundTag();
+            blockEntity.putString("id", "minecraft:chest");
+            blockEntity.putInt("x", y % sizeX);
+            blockEntity.putInt("y", y);
+            blockEntity.putInt("z", y % sizeZ);
+            schematic.tileEntities.add(blockEntity);
+
+            CompoundTag entity = new CompoundTag();
+            entity.putString("id", "minecraft:pig");
+            ListTag pos = new ListTag();
+            pos.add(DoubleTag.of(0.5));
+            pos.add(DoubleTag.of(y + 0.25));
+            pos.add(DoubleTag.of(1.5));
+            entity.put("Pos", pos);
+            schematic.entities.add(entity);
+
+            CompoundTag placeholder = new CompoundTag();
+            placeholder.putString("placeholder", "monolith");
+            placeholder.putDouble("x", 2.5);
+            placeholder.putDouble("y", y + 0.75);
+            placeholder.putDouble("z", 0.5);
+            schematic.entities.add(placeholder);
+        }
+        return schematic;
+    }
+
+    private static ByteArrayInputStream compress(CompoundTag tag) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        NbtIo.writeCompressed(tag, bytes);
+        return new ByteArrayInputStream(bytes.toByteArray());
+    }
+
+    private static void writeEntry(DataOutputStream out, String key, Tag value) throws IOException {
+        out.writeByte(value.getType());
+        out.writeUTF(key);
+        value.write(out);
+    }
+
+    private static void assertSameSchematic(Schematic expected, Schematic actual) {
+        assertEquals(expected.version, actual.version);
+        assertEquals(expected.name, actual.name);
+        assertEquals(expected.sizeX, actual.sizeX);
+        assertEquals(expected.sizeY, actual.sizeY);
+        assertEquals(expected.sizeZ, actual.sizeZ);
+        assertArrayEquals(expected.offset, actual.offset);
+        assertEquals(expected.paletteMax, actual.paletteMax);
+        assertEquals(expected.palette, actual.palette);
+        for (int i = 0; i < expected.blockData.size(); i++) {
+            assertEquals(expected.blockData.get(i), actual.blockData.get(i));
+        }
+        assertEquals(expected.tileEntities, actual.tileEntities);
+        assertEquals(expected.entities, actual.entities);
+    }
+
+    /**
+     * Checks that a partially read schematic is the layers from minY (inclusive) to maxY (exclusive) of the full one.
+     */
+    private static void assertSameRegion(Schematic full, Schematic region, int minY, int maxY) {
+        assertEquals(full.sizeX, region.sizeX);
+        assertEquals(maxY - minY, region.sizeY);
+        assertEquals(full.sizeZ, region.sizeZ);
+        assertEquals(full.palette, region.palette);
+        for (int y = minY; y < maxY; y++) {
+            for (int z = 0; z < full.sizeZ; z++) {
+                for (int x = 0; x < full.sizeX; x++) {
+                    assertEquals(full.blockData.get(x, y, z), region.blockData.get(x, y - minY, z));
+                }
+            }
+        }
+
+        int blockEntities = 0;
+        for (CompoundTag blockEntity : full.tileEntities) {
+            int y = blockEntity.getInt("y");
+            if (y < minY || y >= maxY) continue;
+            CompoundTag moved = blockEntity.copy();
+            moved.putInt("y", y - minY);
+            assertEquals(moved, region.tileEntities.get(blockEntities++));
+        }
+        assertEquals(blockEntities, region.tileEntities.size());
+
+        int entities = 0;
+        for (CompoundTag entity : full.entities) {
+            CompoundTag moved = entity.copy();
+            double y;
+            if (entity.contains("Pos")) {
+                ListTag pos = entity.getList("Pos", 6);
+                y = pos.getDouble(1);
+                ListTag movedPos = new ListTag();
+                movedPos.add(DoubleTag.of(pos.getDouble(0)));
+                movedPos.add(DoubleTag.of(y - minY));
+                movedPos.add(DoubleTag.of(pos.getDouble(2)));
+                moved.put("Pos", movedPos);
+            } else {
+                y = entity.getDouble("y");
+                moved.putDouble("y", y - minY);
+            }
+            if (y < minY || y >= maxY) continue;
+            assertEquals(moved, region.entities.get(entities++));
+        }
+        assertEquals(entities, region.entities.size());
+    }
+}
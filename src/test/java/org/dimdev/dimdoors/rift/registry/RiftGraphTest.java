@@ -0,0 +1,185 @@
+package org.dimdev.dimdoors.rift.registry;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import net.minecraft.Bootstrap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class RiftGraphTest {
+    private RiftGraph graph;
+    private Rift a;
+    private Rift b;
+    private Rift c;
+    private Rift d;
+
+    @BeforeClass
+    public static void bootstrap() {
+        Bootstrap.initialize(); // The vertex codecs need the vanilla registries
+    }
+
+    @Before
+    public void setUp() {
+        graph = new RiftGraph();
+        a = add();
+        b = add();
+        c = add();
+        d = add();
+    }
+
+    @Test
+    public void sourcesAreNotTargets() {
+        graph.addEdge(a, b);
+        graph.addEdge(b, c);
+
+        assertEquals(set(c), targets(b));
+        assertEquals(set(a), sources(b));
+        assertEquals(set(), sources(a));
+        assertEquals(set(), targets(c));
+        assertEquals(set(b), sources(c));
+    }
+
+    @Test
+    public void parallelEdgesAreIgnored() {
+        assertTrue(graph.addEdge(a, b));
+        assertFalse(graph.addEdge(a, b));
+        assertEquals(1, graph.getTargetCount(a));
+        assertEquals(1, graph.getSourceCount(b));
+    }
+
+    @Test
+    public void removingAnEdgeMovesTheLastEdgeIntoItsSlot() {
+        graph.addEdge(a, b);
+        graph.addEdge(a, c);
+        graph.addEdge(a, d);
+        graph.addEdge(b, d);
+        graph.addEdge(c, d);
+
+        assertTrue(graph.removeEdge(a, b));
+        assertFalse(graph.removeEdge(a, b));
+        assertEquals(set(c, d), targets(a));
+        assertEquals(set(), sources(b));
+
+        assertTrue(graph.removeEdge(b, d));
+        assertEquals(set(a, c), sources(d));
+        assertFalse(graph.containsEdge(b, d));
+        assertTrue(graph.containsEdge(c, d));
+    }
+
+    @Test
+    public void removingAVertexRemovesItsEdges() {
+        graph.addEdge(a, b);
+        graph.addEdge(b, c);
+        graph.addEdge(d, b);
+        graph.addEdge(a, c);
+
+        assertTrue(graph.removeVertex(b));
+        assertFalse(graph.containsVertex(b));
+        assertEquals(set(c), targets(a));
+        assertEquals(set(a), sources(c));
+        assertEquals(set(), targets(d));
+        assertEquals(0, graph.getTargetCount(b));
+        assertEquals(0, graph.getSourceCount(b));
+        assertEquals(3, graph.vertexCount());
+    }
+
+    @Test
+    public void freedIdsAreReused() {
+        graph.addEdge(a, b);
+        graph.removeVertex(b);
+
+        Rift e = add();
+        assertEquals(set(), sources(e));
+        assertEquals(set(), targets(a));
+        graph.addEdge(e, a);
+        assertEquals(set(e), sources(a));
+    }
+
+    @Test
+    public void replacingAVertexKeepsItsEdges() {
+        graph.addEdge(a, b);
+        graph.addEdge(b, c);
+
+        Rift replacement = new Rift();
+        graph.replaceVertex(b, replacement);
+        assertFalse(graph.containsVertex(b));
+        assertEquals(set(replacement), targets(a));
+        assertEquals(set(replacement), sources(c));
+        assertEquals(set(a), sources(replacement));
+        assertEquals(set(c), targets(replacement));
+    }
+
+    @Test
+    public void followPointerReturnsTheFirstTarget() {
+        PlayerRiftPointer pointer = new PlayerRiftPointer(UUID.randomUUID());
+        graph.addVertex(pointer);
+        assertNull(graph.followPointer(pointer));
+        assertNull(graph.followPointer(null));
+        graph.addEdge(pointer, b);
+        assertSame(b, graph.followPointer(pointer));
+        assertEquals(set(pointer), sources(b));
+    }
+
+    @Test
+    public void manyVertices() {
+        Rift hub = add();
+        RegistryVertex[] vertices = new RegistryVertex[500];
+        for (int i = 0; i < vertices.length; i++) {
+            vertices[i] = add();
+            graph.addEdge(vertices[i], hub);
+            if (i > 0) graph.addEdge(vertices[i - 1], vertices[i]);
+        }
+        assertEquals(vertices.length, graph.getSourceCount(hub));
+
+        for (int i = 0; i < vertices.length; i += 2) {
+            graph.removeVertex(vertices[i]);
+        }
+        Set<RegistryVertex> expectedSources = new HashSet<>();
+        for (int i = 1; i < vertices.length; i += 2) {
+            expectedSources.add(vertices[i]);
+            assertEquals(set(hub), targets(vertices[i]));
+            assertEquals(set(), sources(vertices[i]));
+        }
+        assertEquals(expectedSources, sources(hub));
+    }
+
+    private Rift add() {
+        Rift rift = new Rift();
+        graph.addVertex(rift);
+        return rift;
+    }
+
+    private Set<RegistryVertex> targets(RegistryVertex vertex) {
+        Set<RegistryVertex> targets = new HashSet<>();
+        for (int i = 0; i < graph.getTargetCount(vertex); i++) {
+            targets.add(graph.getTarget(vertex, i));
+        }
+        assertEquals("Duplicate targets", graph.getTargetCount(vertex), targets.size());
+        return targets;
+    }
+
+    private Set<RegistryVertex> sources(RegistryVertex vertex) {
+        Set<RegistryVertex> sources = new HashSet<>();
+        for (int i = 0; i < graph.getSourceCount(vertex); i++) {
+            sources.add(graph.getSource(vertex, i));
+        }
+        assertEquals("Duplicate sources", graph.getSourceCount(vertex), sources.size());
+        return sources;
+    }
+
+    private static Set<RegistryVertex> set(RegistryVertex... vertices) {
+        Set<RegistryVertex> set = new HashSet<>();
+        for (RegistryVertex vertex : vertices) set.add(vertex);
+        return set;
+    }
+}